@@ -0,0 +1,151 @@
+import entities.Borrow;
+import queries.ApiResult;
+import queries.BatchResults;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit for borrows of the same book.
+ *
+ * Note:
+ *      (1) borrow requests for one book_id that arrive within a short window
+ *          are gathered into one batch, and the batch is handed to
+ *          {@link LibraryManagementSystem#borrowBooks(List)}, so the hot book row
+ *          is locked by one transaction per window instead of one per request.
+ *      (2) a batch is flushed when its window expires or when it is full,
+ *          whichever comes first.
+ *      (3) every caller gets the outcome of its own item, if the whole batch
+ *          fails, every caller gets that failure.
+ *      (4) the threads are started by the first borrow, {@link #close} runs the
+ *          waiting batches at once & stops them until the next borrow.
+ */
+public class BorrowCoalescer {
+
+    private final LibraryManagementSystem library;
+    private final long window;
+    private final int maxBatch;
+    private final int threads;
+    private final ConcurrentHashMap<Integer, Batch> pending = new ConcurrentHashMap<>();
+    /* null until the first borrow & after close, guarded by this */
+    private ScheduledThreadPoolExecutor scheduler = null;
+
+    private static final class Batch {
+        private final List<Borrow> borrows = new ArrayList<>();
+        private final List<CompletableFuture<ApiResult>> futures = new ArrayList<>();
+    }
+
+    /**
+     * @param library  the library that runs the batches
+     * @param window   how long (ms) a batch waits for more borrowers of the same book
+     * @param maxBatch a batch is flushed at once when it reaches this size
+     * @param threads  number of threads that run batches
+     */
+    public BorrowCoalescer(LibraryManagementSystem library, long window, int maxBatch, int threads) {
+        this.library = library;
+        this.window = window;
+        this.maxBatch = maxBatch;
+        this.threads = threads;
+    }
+
+    /**
+     * borrow a book together with other borrowers of the same book,
+     * blocks until the batch has been committed.
+     */
+    public ApiResult borrow(Borrow borrow) {
+        return submit(borrow).join();
+    }
+
+    public CompletableFuture<ApiResult> submit(Borrow borrow) {
+        CompletableFuture<ApiResult> future = new CompletableFuture<>();
+        Batch[] full = new Batch[1];
+        // compute() is atomic per book_id, so a batch is never changed after it left the map
+        pending.compute(borrow.getBookId(), (bookId, batch) -> {
+            if (batch == null) {
+                batch = new Batch();
+                Batch scheduled = batch;
+                scheduler().schedule(() -> {
+                    if (pending.remove(bookId, scheduled)) {
+                        flush(scheduled);
+                    }
+                }, window, TimeUnit.MILLISECONDS);
+            }
+            batch.borrows.add(borrow);
+            batch.futures.add(future);
+            if (batch.borrows.size() >= maxBatch) {
+                full[0] = batch;
+                return null;
+            }
+            return batch;
+        });
+        if (full[0] != null) {
+            scheduler().execute(() -> flush(full[0]));
+        }
+        return future;
+    }
+
+    /**
+     * run the batches that are still waiting & stop the threads, call it before
+     * the library loses its database. borrows after it start the threads again.
+     */
+    public void close() {
+        ScheduledThreadPoolExecutor stopped;
+        synchronized (this) {
+            stopped = scheduler;
+            scheduler = null;
+        }
+        if (stopped == null) {
+            return;
+        }
+        for (Integer bookId : pending.keySet()) {
+            Batch batch = pending.remove(bookId);
+            if (batch != null) {
+                flush(batch);
+            }
+        }
+        // The timers of the batches flushed above have nothing left to do
+        stopped.shutdown();
+        try {
+            stopped.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = new ScheduledThreadPoolExecutor(threads, r -> {
+                Thread t = new Thread(r, "borrow-coalescer");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        }
+        return scheduler;
+    }
+
+    private void flush(Batch batch) {
+        ApiResult result;
+        try {
+            result = library.borrowBooks(batch.borrows);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            result = new ApiResult(false, e.getMessage());
+        }
+        if (!result.ok) {
+            for (CompletableFuture<ApiResult> future : batch.futures) {
+                future.complete(new ApiResult(false, result.message));
+            }
+            return;
+        }
+        List<ApiResult> results = ((BatchResults) result.payload).getResults();
+        for (int i = 0; i < batch.futures.size(); i++) {
+            batch.futures.get(i).complete(results.get(i));
+        }
+    }
+}
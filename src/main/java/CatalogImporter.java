@@ -0,0 +1,403 @@
+import entities.Book;
+import queries.ApiResult;
+import queries.ImportReport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Loads a delimited catalog file (CSV, TSV...) into the library.
+ *
+ * Note:
+ *      (1) every row holds category, title, press, publish_year, author,
+ *          price & stock in this order. fields may be quoted with '"', a
+ *          quote inside a quoted field is written as "".
+ *      (2) the file is read through a fixed NIO buffer and parsed by the
+ *          calling thread, while writer threads store the parsed chunks
+ *          with {@link LibraryManagementSystem#storeBook(List)}. the queue
+ *          between them is bounded, so memory does not grow with the file.
+ *      (3) bad rows are rejected and reported without stopping the load.
+ *          if a chunk is refused by the library, its books are stored
+ *          one by one, so only the offending rows are rejected.
+ */
+public class CatalogImporter {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int FIELD_COUNT = 7;
+    /* see the varchar(63) columns of book */
+    private static final int MAX_TEXT_LENGTH = 63;
+    private static final String[] FIELD_NAMES = {"category", "title", "press", "publish_year", "author", "price", "stock"};
+
+    private final LibraryManagementSystem library;
+    private final int chunkSize;
+    private final int writers;
+    private final int queueCapacity;
+
+    private static final class Chunk {
+        private final List<Book> books;
+        private final long[] lines;
+
+        private Chunk(int capacity) {
+            this.books = new ArrayList<>(capacity);
+            this.lines = new long[capacity];
+        }
+    }
+
+    /* tells a writer that there are no more chunks */
+    private static final Chunk END = new Chunk(0);
+
+    /**
+     * @param library       the library to load the books into
+     * @param chunkSize     number of books stored in one call
+     * @param writers       number of threads that store chunks
+     * @param queueCapacity max number of parsed chunks waiting for a writer
+     */
+    public CatalogImporter(LibraryManagementSystem library, int chunkSize, int writers, int queueCapacity) {
+        this.library = library;
+        this.chunkSize = chunkSize;
+        this.writers = writers;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * @param path      the catalog file, encoded in UTF-8
+     * @param delimiter ',' for CSV, '\t' for TSV
+     * @param header    whether the first row is a header to skip
+     * @return an {@link ImportReport} as ApiResult.payload. ApiResult.ok is
+     *         false if the file could not be read to the end, the rows read
+     *         before have been stored anyway.
+     */
+    public ApiResult importFile(Path path, char delimiter, boolean header) {
+        ImportReport report = new ImportReport();
+        BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(queueCapacity);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            Thread t = new Thread(() -> drain(queue, report), "catalog-importer-" + i);
+            t.start();
+            threads.add(t);
+        }
+        long start = System.currentTimeMillis();
+        String failure = null;
+        RowParser parser = new RowParser(delimiter, header, report, queue);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            parser.parse(channel);
+        } catch (IOException e) {
+            failure = e.getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = "Interrupted while importing.";
+        } finally {
+            // Store the rows parsed before a failure too
+            parser.finish();
+            // Let every writer finish the chunks already queued, then stop
+            for (int i = 0; i < writers; i++) {
+                putUninterruptibly(queue, END);
+            }
+            for (Thread t : threads) {
+                joinUninterruptibly(t);
+            }
+        }
+        report.setElapsedMillis(System.currentTimeMillis() - start);
+        if (failure != null) {
+            return new ApiResult(false, failure, report);
+        }
+        return new ApiResult(true, report);
+    }
+
+    private void drain(BlockingQueue<Chunk> queue, ImportReport report) {
+        while (true) {
+            Chunk chunk;
+            try {
+                chunk = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (chunk == END) {
+                return;
+            }
+            try {
+                store(chunk, report);
+            } catch (RuntimeException e) {
+                // Keep draining, otherwise the reader would wait for this writer forever
+                for (int i = 0; i < chunk.books.size(); i++) {
+                    report.addRejected(chunk.lines[i], e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void store(Chunk chunk, ImportReport report) {
+        ApiResult result = library.storeBook(chunk.books);
+        if (result.ok) {
+            report.addStored(chunk.books.size());
+            return;
+        }
+        // Some book has been refused, store the others one by one
+        for (int i = 0; i < chunk.books.size(); i++) {
+            ApiResult single = library.storeBook(chunk.books.get(i));
+            if (single.ok) {
+                report.addStored(1);
+            } else {
+                report.addRejected(chunk.lines[i], single.message);
+            }
+        }
+    }
+
+    /**
+     * a state machine that turns characters into books, one row at a time.
+     * the field buffer is reused, so a row costs little more than its strings.
+     */
+    private final class RowParser {
+        private final char delimiter;
+        private boolean skipHeader;
+        private final ImportReport report;
+        private final BlockingQueue<Chunk> queue;
+
+        private final StringBuilder field = new StringBuilder();
+        private final String[] texts = new String[FIELD_COUNT];
+        private int fieldIndex = 0;
+        private boolean inQuotes = false;
+        private boolean afterQuote = false;
+        private boolean quoted = false;
+        private long line = 1;
+        private long rowLine = 1;
+        private int publishYear;
+        private double price;
+        private int stock;
+        private String error = null;
+        private Chunk chunk;
+
+        private RowParser(char delimiter, boolean skipHeader, ImportReport report, BlockingQueue<Chunk> queue) {
+            this.delimiter = delimiter;
+            this.skipHeader = skipHeader;
+            this.report = report;
+            this.queue = queue;
+            this.chunk = new Chunk(chunkSize);
+        }
+
+        private void parse(FileChannel channel) throws IOException, InterruptedException {
+            ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            // One UTF-8 byte never decodes to more than one char, so the chars always fit
+            CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            boolean first = true;
+            boolean eof = false;
+            while (!eof) {
+                eof = channel.read(bytes) < 0;
+                bytes.flip();
+                decoder.decode(bytes, chars, eof);
+                if (eof) {
+                    decoder.flush(chars);
+                }
+                bytes.compact();
+                chars.flip();
+                // Skip the byte order mark
+                if (first && chars.hasRemaining() && chars.get(chars.position()) == '\uFEFF') {
+                    chars.get();
+                }
+                first = false;
+                while (chars.hasRemaining()) {
+                    accept(chars.get());
+                }
+                chars.clear();
+            }
+            // The last row may have no line break
+            if (fieldIndex > 0 || field.length() > 0 || quoted) {
+                endField();
+                endRow();
+            }
+        }
+
+        /* hand the rows of the last, partly filled chunk to the writers */
+        private void finish() {
+            if (!chunk.books.isEmpty()) {
+                putUninterruptibly(queue, chunk);
+                chunk = new Chunk(chunkSize);
+            }
+        }
+
+        private void accept(char c) throws InterruptedException {
+            if (inQuotes) {
+                if (c == '"') {
+                    inQuotes = false;
+                    afterQuote = true;
+                } else {
+                    if (c == '\n') {
+                        line++;
+                    }
+                    field.append(c);
+                }
+                return;
+            }
+            if (afterQuote) {
+                afterQuote = false;
+                if (c == '"') {
+                    // "" inside a quoted field
+                    field.append('"');
+                    inQuotes = true;
+                    return;
+                }
+            }
+            if (c == delimiter) {
+                endField();
+            } else if (c == '\n') {
+                // Blank lines are skipped
+                if (fieldIndex > 0 || field.length() > 0 || quoted) {
+                    endField();
+                    endRow();
+                }
+                line++;
+                rowLine = line;
+            } else if (c == '"' && field.length() == 0 && !quoted) {
+                inQuotes = true;
+                quoted = true;
+            } else if (c != '\r') {
+                field.append(c);
+            }
+        }
+
+        private void endField() {
+            if (fieldIndex < FIELD_COUNT && error == null) {
+                switch (fieldIndex) {
+                    case 3:
+                        publishYear = parseInt(field, "publish_year");
+                        break;
+                    case 5:
+                        price = parsePrice(field);
+                        break;
+                    case 6:
+                        stock = parseInt(field, "stock");
+                        break;
+                    default:
+                        texts[fieldIndex] = parseText(field, fieldIndex);
+                }
+            }
+            fieldIndex++;
+            field.setLength(0);
+            quoted = false;
+        }
+
+        private void endRow() throws InterruptedException {
+            try {
+                if (skipHeader) {
+                    skipHeader = false;
+                    return;
+                }
+                report.addRow();
+                if (fieldIndex != FIELD_COUNT) {
+                    report.addRejected(rowLine, "expected " + FIELD_COUNT + " fields but found " + fieldIndex);
+                    return;
+                }
+                if (error != null) {
+                    report.addRejected(rowLine, error);
+                    return;
+                }
+                chunk.lines[chunk.books.size()] = rowLine;
+                chunk.books.add(new Book(texts[0], texts[1], texts[2], publishYear, texts[4], price, stock));
+                if (chunk.books.size() == chunkSize) {
+                    // Blocks while the writers are behind, this keeps memory bounded
+                    queue.put(chunk);
+                    chunk = new Chunk(chunkSize);
+                }
+            } finally {
+                fieldIndex = 0;
+                error = null;
+            }
+        }
+
+        private String parseText(StringBuilder s, int index) {
+            String text = s.toString().trim();
+            if (text.isEmpty()) {
+                error = FIELD_NAMES[index] + " is empty";
+            } else if (text.length() > MAX_TEXT_LENGTH) {
+                error = FIELD_NAMES[index] + " is longer than " + MAX_TEXT_LENGTH + " characters";
+            } else if (text.indexOf('\uFFFD') >= 0) {
+                error = FIELD_NAMES[index] + " is not valid UTF-8";
+            }
+            return text;
+        }
+
+        /* parse a non-negative int straight from the buffer, without a String */
+        private int parseInt(StringBuilder s, String name) {
+            int from = 0;
+            int to = s.length();
+            while (from < to && Character.isWhitespace(s.charAt(from))) {
+                from++;
+            }
+            while (to > from && Character.isWhitespace(s.charAt(to - 1))) {
+                to--;
+            }
+            if (from == to || to - from > 9) {
+                error = name + " is not a valid number";
+                return 0;
+            }
+            int value = 0;
+            for (int i = from; i < to; i++) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9') {
+                    error = name + " is not a valid number";
+                    return 0;
+                }
+                value = value * 10 + (c - '0');
+            }
+            return value;
+        }
+
+        private double parsePrice(StringBuilder s) {
+            try {
+                double value = Double.parseDouble(s.toString().trim());
+                // decimal(7, 2)
+                if (value < 0 || value >= 100000 || Double.isNaN(value)) {
+                    error = "price is out of range";
+                }
+                return value;
+            } catch (NumberFormatException e) {
+                error = "price is not a valid number";
+                return 0;
+            }
+        }
+    }
+
+    private static void putUninterruptibly(BlockingQueue<Chunk> queue, Chunk chunk) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(chunk);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void joinUninterruptibly(Thread t) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                t.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
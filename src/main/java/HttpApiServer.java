@@ -0,0 +1,897 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import queries.*;
+import utils.EventBus;
+import utils.Json;
+import utils.JsonWriter;
+import utils.TableVersions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Serves the library as a JSON API over HTTP, for the Vue frontend & others.
+ *
+ * Note:
+ *      (1) connections are watched by one selector thread of the JDK server,
+ *          so idle keep-alive connections cost no thread. requests on one
+ *          connection, pipelined or not, are answered in order.
+ *      (2) requests are handled by a fixed pool of workers, which should be
+ *          sized to the connection pool, with a bounded queue in front. when
+ *          the queue is full the request is answered 503 at once by the
+ *          thread that hands it over, instead of waiting for a database
+ *          connection, so a flood queues nothing beyond the bounded queue.
+ *      (3) every response is JSON. a refused operation is answered 400 with
+ *          {"ok": false, "message": ...}, an unknown route 404.
+ *      (4) payloads are written by hand-written writers straight into the
+ *          response buffer, so a large result list costs no strings or trees
+ *          on top of the payload. a response that fits in one buffer is sent
+ *          with its length, a larger one is sent in chunks as it is written.
+ *      (5) GET /card, /book & /borrow carry an ETag made of the versions of
+ *          the tables they read. a request whose If-None-Match still matches
+ *          is answered 304 without asking the library.
+ *      (6) GET /events is a stream of server-sent events from the event bus of
+ *          the library. every stream has a thread of its own, outside of the
+ *          workers, and the number of streams is bounded. a client that falls
+ *          behind gets a "dropped" event and is disconnected.
+ *      (7) the API has no authentication. it listens on the loopback address
+ *          unless told otherwise, sends CORS headers only for the origin set
+ *          by {@link #setCorsOrigin}, and POST /reset is a 404 until it is
+ *          enabled by {@link #setResetEnabled}.
+ *
+ * Routes, the shapes of /card & /borrow follow the frontend:
+ *      GET    /card                      list of {id, name, department, type}
+ *      POST   /card                      {name, department, type}
+ *      DELETE /card?id=
+ *      GET    /borrow?cardID=            list of {cardID, bookID, borrowTime, returnTime, ...book info},
+ *                                        also takes from, to, pageSize & pageToken. the next page
+ *                                        token is sent in the X-Next-Page-Token header
+ *      POST   /borrow                    {cardID, bookID[, borrowTime]}, or a list of them
+ *      POST   /return                    {cardID, bookID[, returnTime]}, or a list of them
+ *      GET    /book                      the fields of BookQueryConditions as parameters
+ *      POST   /book                      a book, or a list of books
+ *      PUT    /book                      a book with its id
+ *      DELETE /book?id=
+ *      POST   /book/stock                {id, delta}
+ *      POST   /reset                     only if enabled
+ *      GET    /events                    events of borrows, returns, stock changes & removed books,
+ *                                        bookID & cardID (comma separated lists) narrow them down
+ */
+public class HttpApiServer {
+
+    private static final Logger log = Logger.getLogger(HttpApiServer.class.getName());
+
+    /* request bodies larger than this are refused */
+    private static final int MAX_BODY_SIZE = 4 << 20;
+    /* an idle event stream sends a comment this often, so a closed connection is found out */
+    private static final long HEARTBEAT_SECONDS = 15;
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final LibraryManagementSystem library;
+    private final HttpServer server;
+    private final ThreadPoolExecutor workers;
+    /* threads of the event streams */
+    private final ExecutorService streams;
+    private final Semaphore streamSlots;
+    private final int streamBufferSize;
+    private final Map<String, Route> routes = new HashMap<>();
+    /* the only origin allowed by CORS, null sends no CORS headers */
+    private volatile String corsOrigin = null;
+    private volatile boolean resetEnabled = false;
+    /* set while a request the workers have no room for is answered */
+    private static final ThreadLocal<Boolean> SHEDDING = new ThreadLocal<>();
+
+    private interface Route {
+        Reply handle(Request request) throws BadRequest;
+    }
+
+    private static final class Request {
+        private final Map<String, String> params;
+        private final String body;
+        private final String ifNoneMatch;
+
+        private Request(Map<String, String> params, String body, String ifNoneMatch) {
+            this.params = params;
+            this.body = body;
+            this.ifNoneMatch = ifNoneMatch;
+        }
+    }
+
+    /* writes the JSON of a response */
+    private interface Body {
+        void write(JsonWriter w) throws IOException;
+    }
+
+    private static final class Reply {
+        private final int status;
+        private final Body body;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+
+        private Reply(int status, Body body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    /**
+     * holds back the first buffer of a response. if nothing follows, it is
+     * sent with a Content-Length, otherwise the response is chunked.
+     */
+    private static final class ResponseStream extends OutputStream {
+        private final HttpExchange exchange;
+        private final int status;
+        private byte[] held = null;
+        private OutputStream out = null;
+
+        private ResponseStream(HttpExchange exchange, int status) {
+            this.exchange = exchange;
+            this.status = status;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (out != null) {
+                out.write(b, off, len);
+                return;
+            }
+            if (held == null) {
+                held = Arrays.copyOfRange(b, off, off + len);
+                return;
+            }
+            // More than one buffer, the length is unknown
+            exchange.sendResponseHeaders(status, 0);
+            out = exchange.getResponseBody();
+            out.write(held);
+            held = null;
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out == null) {
+                // A known length keeps the connection alive without chunks
+                byte[] bytes = held == null ? new byte[0] : held;
+                exchange.sendResponseHeaders(status, bytes.length);
+                out = exchange.getResponseBody();
+                out.write(bytes);
+            }
+            out.close();
+        }
+    }
+
+    /* a malformed request, answered 400 */
+    private static final class BadRequest extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private BadRequest(String message) {
+            super(message);
+        }
+    }
+
+    public HttpApiServer(LibraryManagementSystem library, int port, int workers, int queueSize) throws IOException {
+        this(library, null, port, workers, queueSize, 256, 256);
+    }
+
+    /**
+     * @param library          the library to serve
+     * @param host             the address to listen on, null for the loopback address
+     * @param port             0 picks a free port, see {@link #getPort()}
+     * @param workers          number of threads that handle requests
+     * @param queueSize        max number of requests waiting for a worker
+     * @param maxStreams       max number of open event streams
+     * @param streamBufferSize max number of events waiting to be sent on one stream
+     */
+    public HttpApiServer(LibraryManagementSystem library, String host, int port, int workers, int queueSize,
+                         int maxStreams, int streamBufferSize) throws IOException {
+        this.library = library;
+        this.streamSlots = new Semaphore(maxStreams);
+        this.streamBufferSize = streamBufferSize;
+        AtomicInteger streamCount = new AtomicInteger();
+        this.streams = Executors.newCachedThreadPool(
+                r -> new Thread(r, "http-events-" + streamCount.getAndIncrement()));
+        this.server = HttpServer.create(host == null
+                ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                : new InetSocketAddress(host, port), 0);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                r -> new Thread(r, "http-worker-" + threadCount.getAndIncrement()),
+                (r, pool) -> {
+                    // Answer 503 right here, it costs no database connection
+                    SHEDDING.set(Boolean.TRUE);
+                    try {
+                        r.run();
+                    } finally {
+                        SHEDDING.remove();
+                    }
+                });
+        server.setExecutor(this.workers);
+        server.createContext("/", this::dispatch);
+
+        routes.put("GET /card", request -> conditional(request, this::showCards, TableVersions.Table.CARD));
+        routes.put("POST /card", this::registerCard);
+        routes.put("DELETE /card", this::removeCard);
+        routes.put("GET /borrow", request -> conditional(request, this::showBorrowHistory,
+                TableVersions.Table.BORROW, TableVersions.Table.BOOK));
+        routes.put("POST /borrow", this::borrowBook);
+        routes.put("POST /return", this::returnBook);
+        routes.put("GET /book", request -> conditional(request, this::queryBook, TableVersions.Table.BOOK));
+        routes.put("POST /book", this::storeBook);
+        routes.put("PUT /book", this::modifyBookInfo);
+        routes.put("DELETE /book", this::removeBook);
+        routes.put("POST /book/stock", this::incBookStock);
+        routes.put("POST /reset", request -> resetEnabled
+                ? reply(library.resetDatabase(), null)
+                : error(404, "No such route."));
+    }
+
+    /**
+     * allow a frontend served from origin to call the API, e.g. "http://localhost:5173".
+     * null or empty sends no CORS headers, so browsers only allow pages of the same origin.
+     */
+    public void setCorsOrigin(String origin) {
+        this.corsOrigin = origin == null || origin.isEmpty() ? null : origin;
+    }
+
+    /**
+     * POST /reset drops every book, card & borrow, it is only served if enabled.
+     */
+    public void setResetEnabled(boolean resetEnabled) {
+        this.resetEnabled = resetEnabled;
+    }
+
+    public void start() {
+        server.start();
+        log.info("HTTP API listening on " + server.getAddress());
+    }
+
+    /**
+     * stop accepting requests, and wait up to delay seconds for the running ones.
+     * open event streams are closed at once.
+     */
+    public void stop(int delay) {
+        // Streams never end by themselves
+        streams.shutdownNow();
+        try {
+            streams.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        server.stop(delay);
+        workers.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        boolean streaming = false;
+        try {
+            Headers headers = exchange.getResponseHeaders();
+            String method = exchange.getRequestMethod();
+            String origin = corsOrigin;
+            if (origin != null) {
+                // The frontend is served from another origin during development
+                headers.set("Access-Control-Allow-Origin", origin);
+                headers.set("Access-Control-Expose-Headers", "X-Next-Page-Token, ETag");
+                headers.set("Vary", "Origin");
+                if (method.equals("OPTIONS")) {
+                    headers.set("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
+                    headers.set("Access-Control-Allow-Headers", "Content-Type, If-None-Match");
+                    exchange.sendResponseHeaders(204, -1);
+                    return;
+                }
+            }
+            Reply reply;
+            if (SHEDDING.get() != null) {
+                reply = error(503, "The server is busy, please retry.");
+                headers.set("Retry-After", "1");
+            } else if (method.equals("GET") && exchange.getRequestURI().getPath().equals("/events")) {
+                reply = openStream(exchange);
+                streaming = reply == null;
+                if (streaming) {
+                    return;
+                }
+            } else {
+                reply = route(exchange, method);
+            }
+            send(exchange, reply);
+        } finally {
+            if (!streaming) {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * subscribe to the event bus & hand the exchange over to a stream thread.
+     *
+     * @return null if the stream has been opened, otherwise the reply to send
+     */
+    private Reply openStream(HttpExchange exchange) throws IOException {
+        Set<Integer> bookIds;
+        Set<Integer> cardIds;
+        try {
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            bookIds = idsParam(params, "bookID");
+            cardIds = idsParam(params, "cardID");
+        } catch (BadRequest e) {
+            return error(400, e.getMessage());
+        }
+        EventBus bus = library.getEventBus();
+        if (bus == null) {
+            return error(404, "The library publishes no events.");
+        }
+        if (!streamSlots.tryAcquire()) {
+            exchange.getResponseHeaders().set("Retry-After", "10");
+            return error(503, "Too many event streams, please retry.");
+        }
+        EventBus.Subscription subscription = bus.subscribe(bookIds, cardIds, streamBufferSize);
+        try {
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Content-Type", "text/event-stream; charset=utf-8");
+            headers.set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            streams.execute(() -> stream(exchange, subscription));
+        } catch (IOException | RuntimeException e) {
+            subscription.close();
+            streamSlots.release();
+            throw e;
+        }
+        return null;
+    }
+
+    private void stream(HttpExchange exchange, EventBus.Subscription subscription) {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(HEARTBEAT);
+            out.flush();
+            while (!subscription.isDropped()) {
+                LibraryEvent event = subscription.poll(HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+                if (event == null) {
+                    out.write(HEARTBEAT);
+                    out.flush();
+                    continue;
+                }
+                // Send everything that is already waiting in one flush
+                do {
+                    frame.reset();
+                    writeEvent(frame, event);
+                    frame.writeTo(out);
+                } while ((event = subscription.poll(0, TimeUnit.SECONDS)) != null);
+                out.flush();
+            }
+            out.write("event: dropped\ndata: {}\n\n".getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // The client has gone away
+        } catch (InterruptedException e) {
+            // The server is stopping
+            Thread.currentThread().interrupt();
+        } finally {
+            subscription.close();
+            exchange.close();
+            streamSlots.release();
+        }
+    }
+
+    private static void writeEvent(OutputStream out, LibraryEvent event) throws IOException {
+        out.write(("id: " + event.getSequence() + "\nevent: " + event.getType().getValue() + "\ndata: ")
+                .getBytes(StandardCharsets.UTF_8));
+        JsonWriter w = new JsonWriter(out, 256);
+        w.beginObject();
+        w.field("type", event.getType().getValue());
+        w.field("bookID", event.getBookId());
+        w.field("cardID", event.getCardId());
+        w.field("delta", event.getDelta());
+        w.field("time", event.getTime());
+        w.endObject();
+        w.flush();
+        out.write('\n');
+        out.write('\n');
+    }
+
+    private Reply route(HttpExchange exchange, String method) throws IOException {
+        Route route = routes.get(method + " " + exchange.getRequestURI().getPath());
+        if (route == null) {
+            return error(404, "No such route.");
+        }
+        try {
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            return route.handle(new Request(params, readBody(exchange),
+                    exchange.getRequestHeaders().getFirst("If-None-Match")));
+        } catch (BadRequest | IllegalArgumentException | ClassCastException e) {
+            return error(400, e.getMessage());
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return error(500, e.getMessage());
+        }
+    }
+
+    private static void send(HttpExchange exchange, Reply reply) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", "application/json; charset=utf-8");
+        for (Map.Entry<String, String> header : reply.headers.entrySet()) {
+            headers.set(header.getKey(), header.getValue());
+        }
+        if (reply.body == null) {
+            exchange.sendResponseHeaders(reply.status, -1);
+            return;
+        }
+        try (OutputStream out = new ResponseStream(exchange, reply.status)) {
+            JsonWriter w = new JsonWriter(out);
+            reply.body.write(w);
+            w.flush();
+        }
+    }
+
+    /**
+     * answer 304 if the client already has the current version of the tables,
+     * otherwise read them & tag the reply with their version.
+     */
+    private Reply conditional(Request request, Route read, TableVersions.Table... tables) throws BadRequest {
+        TableVersions versions = library.getTableVersions();
+        if (versions == null) {
+            return read.handle(request);
+        }
+        // Take the versions before reading, a change in between only makes the tag older
+        String etag = versions.etag(tables);
+        if (request.ifNoneMatch != null && matches(request.ifNoneMatch, etag)) {
+            Reply reply = new Reply(304, null);
+            reply.headers.put("ETag", etag);
+            return reply;
+        }
+        Reply reply = read.handle(request);
+        if (reply.status == 200) {
+            reply.headers.put("ETag", etag);
+            // Let browsers keep the reply, but ask again every time
+            reply.headers.put("Cache-Control", "no-cache");
+        }
+        return reply;
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag) || tag.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Reply showCards(Request request) {
+        ApiResult result = library.showCards();
+        if (!result.ok) {
+            return reply(result, null);
+        }
+        CardList cards = (CardList) result.payload;
+        return new Reply(200, w -> {
+            w.beginArray();
+            for (Card card : cards.getCards()) {
+                writeCard(w, card);
+            }
+            w.endArray();
+        });
+    }
+
+    private Reply registerCard(Request request) throws BadRequest {
+        Map<String, Object> json = object(request.body);
+        Card card = new Card();
+        card.setName(string(json, "name"));
+        card.setDepartment(string(json, "department"));
+        card.setType(cardType(string(json, "type")));
+        ApiResult result = library.registerCard(card);
+        return reply(result, result.ok ? w -> writeCard(w, card) : null);
+    }
+
+    private Reply removeCard(Request request) throws BadRequest {
+        return reply(library.removeCard(intParam(request, "id")), null);
+    }
+
+    private Reply showBorrowHistory(Request request) throws BadRequest {
+        BorrowHistoryConditions conditions = new BorrowHistoryConditions(intParam(request, "cardID"));
+        conditions.setMinBorrowTime(longParam(request, "from"));
+        conditions.setMaxBorrowTime(longParam(request, "to"));
+        conditions.setPageSize(integerParam(request, "pageSize"));
+        conditions.setPageToken(request.params.get("pageToken"));
+        ApiResult result = library.showBorrowHistory(conditions);
+        if (!result.ok) {
+            return reply(result, null);
+        }
+        BorrowHistories histories = (BorrowHistories) result.payload;
+        Reply reply = new Reply(200, w -> writeBorrowHistories(w, histories));
+        if (histories.getNextPageToken() != null) {
+            reply.headers.put("X-Next-Page-Token", histories.getNextPageToken());
+        }
+        return reply;
+    }
+
+    private Reply borrowBook(Request request) throws BadRequest {
+        Object json = parse(request.body);
+        if (json instanceof List) {
+            List<Borrow> borrows = new ArrayList<>();
+            for (Object item : (List<?>) json) {
+                borrows.add(borrowOf(asObject(item), true));
+            }
+            return batchReply(library.borrowBooks(borrows));
+        }
+        return reply(library.borrowBook(borrowOf(asObject(json), true)), null);
+    }
+
+    private Reply returnBook(Request request) throws BadRequest {
+        Object json = parse(request.body);
+        if (json instanceof List) {
+            List<Borrow> borrows = new ArrayList<>();
+            for (Object item : (List<?>) json) {
+                borrows.add(borrowOf(asObject(item), false));
+            }
+            return batchReply(library.returnBooks(borrows));
+        }
+        return reply(library.returnBook(borrowOf(asObject(json), false)), null);
+    }
+
+    private Reply queryBook(Request request) throws BadRequest {
+        BookQueryConditions conditions = new BookQueryConditions();
+        conditions.setCategory(request.params.get("category"));
+        conditions.setTitle(request.params.get("title"));
+        conditions.setPress(request.params.get("press"));
+        conditions.setMinPublishYear(integerParam(request, "minPublishYear"));
+        conditions.setMaxPublishYear(integerParam(request, "maxPublishYear"));
+        conditions.setAuthor(request.params.get("author"));
+        conditions.setMinPrice(doubleParam(request, "minPrice"));
+        conditions.setMaxPrice(doubleParam(request, "maxPrice"));
+        String sortBy = request.params.get("sortBy");
+        if (sortBy != null) {
+            conditions.setSortBy(Book.SortColumn.valueOf(sortBy.toUpperCase()));
+        }
+        String sortOrder = request.params.get("sortOrder");
+        if (sortOrder != null) {
+            conditions.setSortOrder(SortOrder.valueOf(sortOrder.toUpperCase()));
+        }
+        conditions.setPageSize(integerParam(request, "pageSize"));
+        conditions.setPageToken(request.params.get("pageToken"));
+        ApiResult result = library.queryBook(conditions);
+        if (!result.ok) {
+            return reply(result, null);
+        }
+        BookQueryResults results = (BookQueryResults) result.payload;
+        return new Reply(200, w -> writeBookQueryResults(w, results));
+    }
+
+    private Reply storeBook(Request request) throws BadRequest {
+        Object json = parse(request.body);
+        if (json instanceof List) {
+            List<Book> books = new ArrayList<>();
+            for (Object item : (List<?>) json) {
+                books.add(bookOf(asObject(item)));
+            }
+            ApiResult result = library.storeBook(books);
+            return reply(result, result.ok ? w -> {
+                w.beginArray();
+                for (Book book : books) {
+                    w.value(book.getBookId());
+                }
+                w.endArray();
+            } : null);
+        }
+        Book book = bookOf(asObject(json));
+        ApiResult result = library.storeBook(book);
+        return reply(result, result.ok ? w -> writeBook(w, book) : null);
+    }
+
+    private Reply modifyBookInfo(Request request) throws BadRequest {
+        Map<String, Object> json = object(request.body);
+        Book book = bookOf(json);
+        book.setBookId(integer(json, "id"));
+        return reply(library.modifyBookInfo(book), null);
+    }
+
+    private Reply removeBook(Request request) throws BadRequest {
+        return reply(library.removeBook(intParam(request, "id")), null);
+    }
+
+    private Reply incBookStock(Request request) throws BadRequest {
+        Map<String, Object> json = object(request.body);
+        return reply(library.incBookStock(integer(json, "id"), integer(json, "delta")), null);
+    }
+
+    /* {"ok": ..., "message": ..., "payload": ...}, 400 if the library refused */
+    private static Reply reply(ApiResult result, Body payload) {
+        return new Reply(result.ok ? 200 : 400, w -> {
+            w.beginObject();
+            w.field("ok", result.ok);
+            w.field("message", result.message);
+            if (payload != null) {
+                w.name("payload");
+                payload.write(w);
+            }
+            w.endObject();
+        });
+    }
+
+    private static Reply batchReply(ApiResult result) {
+        if (!result.ok) {
+            return reply(result, null);
+        }
+        BatchResults results = (BatchResults) result.payload;
+        return reply(result, w -> {
+            w.beginArray();
+            for (ApiResult item : results.getResults()) {
+                w.beginObject().field("ok", item.ok).field("message", item.message).endObject();
+            }
+            w.endArray();
+        });
+    }
+
+    private static Reply error(int status, String message) {
+        return new Reply(status, w -> w.beginObject().field("ok", false).field("message", message).endObject());
+    }
+
+    /* the writers of the payloads, the shapes of cards & borrow records follow the frontend */
+
+    private static void writeCard(JsonWriter w, Card card) throws IOException {
+        w.beginObject();
+        w.field("id", card.getCardId());
+        w.field("name", card.getName());
+        w.field("department", card.getDepartment());
+        // The frontend shows & sends the type by these labels, teacher & student in Chinese
+        w.field("type", card.getType() == Card.CardType.Teacher ? "\u6559\u5e08" : "\u5b66\u751f");
+        w.endObject();
+    }
+
+    private static void writeBorrowHistories(JsonWriter w, BorrowHistories histories) throws IOException {
+        w.beginArray();
+        for (BorrowHistories.Item item : histories.getItems()) {
+            w.beginObject();
+            w.field("cardID", item.getCardId());
+            w.field("bookID", item.getBookId());
+            w.field("borrowTime", item.getBorrowTime());
+            w.field("returnTime", item.getReturnTime());
+            w.field("category", item.getCategory());
+            w.field("title", item.getTitle());
+            w.field("press", item.getPress());
+            w.field("publishYear", item.getPublishYear());
+            w.field("author", item.getAuthor());
+            w.field("price", item.getPrice());
+            w.endObject();
+        }
+        w.endArray();
+    }
+
+    private static void writeBookQueryResults(JsonWriter w, BookQueryResults results) throws IOException {
+        w.beginObject();
+        w.field("count", results.getCount());
+        w.name("results").beginArray();
+        for (Book book : results.getResults()) {
+            writeBook(w, book);
+        }
+        w.endArray();
+        w.field("nextPageToken", results.getNextPageToken());
+        w.endObject();
+    }
+
+    private static Card.CardType cardType(String type) throws BadRequest {
+        switch (type) {
+            case "S":
+            case "Student":
+            case "\u5b66\u751f":
+                return Card.CardType.Student;
+            case "T":
+            case "Teacher":
+            case "\u6559\u5e08":
+                return Card.CardType.Teacher;
+            default:
+                throw new BadRequest("Unknown card type: " + type);
+        }
+    }
+
+    private static void writeBook(JsonWriter w, Book book) throws IOException {
+        w.beginObject();
+        w.field("id", book.getBookId());
+        w.field("category", book.getCategory());
+        w.field("title", book.getTitle());
+        w.field("press", book.getPress());
+        w.field("publishYear", book.getPublishYear());
+        w.field("author", book.getAuthor());
+        w.field("price", book.getPrice());
+        w.field("stock", book.getStock());
+        w.endObject();
+    }
+
+    private static Book bookOf(Map<String, Object> json) throws BadRequest {
+        Book book = new Book();
+        book.setCategory(string(json, "category"));
+        book.setTitle(string(json, "title"));
+        book.setPress(string(json, "press"));
+        book.setPublishYear(integer(json, "publishYear"));
+        book.setAuthor(string(json, "author"));
+        book.setPrice(number(json, "price").doubleValue());
+        Object stock = json.get("stock");
+        book.setStock(stock == null ? 0 : integer(json, "stock"));
+        return book;
+    }
+
+    /* the time defaults to now, as the frontend does not send it */
+    private static Borrow borrowOf(Map<String, Object> json, boolean borrowing) throws BadRequest {
+        Borrow borrow = new Borrow(integer(json, "bookID"), integer(json, "cardID"));
+        String timeKey = borrowing ? "borrowTime" : "returnTime";
+        long time = json.get(timeKey) == null ? System.currentTimeMillis() : number(json, timeKey).longValue();
+        if (borrowing) {
+            borrow.setBorrowTime(time);
+        } else {
+            borrow.setReturnTime(time);
+        }
+        return borrow;
+    }
+
+    private static Object parse(String body) throws BadRequest {
+        if (body.isEmpty()) {
+            throw new BadRequest("The request body is empty.");
+        }
+        return Json.parse(body);
+    }
+
+    private static Map<String, Object> object(String body) throws BadRequest {
+        return asObject(parse(body));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asObject(Object json) throws BadRequest {
+        if (!(json instanceof Map)) {
+            throw new BadRequest("Expected a JSON object.");
+        }
+        return (Map<String, Object>) json;
+    }
+
+    private static String string(Map<String, Object> json, String key) throws BadRequest {
+        Object value = json.get(key);
+        if (!(value instanceof String)) {
+            throw new BadRequest("Missing string field: " + key);
+        }
+        return (String) value;
+    }
+
+    private static Number number(Map<String, Object> json, String key) throws BadRequest {
+        Object value = json.get(key);
+        if (value instanceof String) {
+            // Numbers typed into a form come as strings
+            try {
+                return Double.valueOf((String) value);
+            } catch (NumberFormatException e) {
+                throw new BadRequest("Not a number: " + key);
+            }
+        }
+        if (!(value instanceof Number)) {
+            throw new BadRequest("Missing number field: " + key);
+        }
+        return (Number) value;
+    }
+
+    private static int integer(Map<String, Object> json, String key) throws BadRequest {
+        double value = number(json, key).doubleValue();
+        if (value != Math.rint(value) || Math.abs(value) > Integer.MAX_VALUE) {
+            throw new BadRequest("Not an integer: " + key);
+        }
+        return (int) value;
+    }
+
+    private static int intParam(Request request, String key) throws BadRequest {
+        Integer value = integerParam(request, key);
+        if (value == null) {
+            throw new BadRequest("Missing parameter: " + key);
+        }
+        return value;
+    }
+
+    private static Integer integerParam(Request request, String key) throws BadRequest {
+        String value = request.params.get(key);
+        try {
+            return value == null || value.isEmpty() ? null : Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            throw new BadRequest("Not an integer: " + key);
+        }
+    }
+
+    private static Long longParam(Request request, String key) throws BadRequest {
+        String value = request.params.get(key);
+        try {
+            return value == null || value.isEmpty() ? null : Long.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            throw new BadRequest("Not an integer: " + key);
+        }
+    }
+
+    private static Double doubleParam(Request request, String key) throws BadRequest {
+        String value = request.params.get(key);
+        try {
+            return value == null || value.isEmpty() ? null : Double.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            throw new BadRequest("Not a number: " + key);
+        }
+    }
+
+    private static Set<Integer> idsParam(Map<String, String> params, String key) throws BadRequest {
+        Set<Integer> ids = new HashSet<>();
+        String value = params.get(key);
+        if (value == null || value.isEmpty()) {
+            return ids;
+        }
+        try {
+            for (String id : value.split(",")) {
+                ids.add(Integer.valueOf(id.trim()));
+            }
+        } catch (NumberFormatException e) {
+            throw new BadRequest("Not a list of integers: " + key);
+        }
+        return ids;
+    }
+
+    private static Map<String, String> parseQuery(String query) throws BadRequest {
+        Map<String, String> params = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        try {
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+                String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+                params.put(key, value);
+            }
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            throw new BadRequest("Malformed query string.");
+        }
+        return params;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException, BadRequest {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = exchange.getRequestBody()) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                body.write(buffer, 0, n);
+                if (body.size() > MAX_BODY_SIZE) {
+                    throw new BadRequest("The request body is too large.");
+                }
+            }
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8).trim();
+    }
+}
@@ -0,0 +1,551 @@
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import queries.*;
+import utils.BookQueryCache;
+import utils.EventBus;
+import utils.StripedLock;
+import utils.TableVersions;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * A library that keeps books, cards and borrows in memory, selected by
+ * "type: memory" in application.yaml.
+ *
+ * Note:
+ *      (1) it follows the same rules as {@link LibraryManagementSystemImpl},
+ *          including the cascades of the foreign keys, so it passes the
+ *          same tests without a database. string conditions ignore case &
+ *          accents, as the collations of MySQL & SQL Server do.
+ *      (2) operations that change the set of books or cards take the write
+ *          lock; borrow, return and stock changes only take the read lock
+ *          plus the stripe of their book, so different books run in parallel.
+ *      (3) objects passed in and returned are copies, callers can not change
+ *          the state behind the library's back.
+ */
+public class InMemoryLibraryManagementSystemImpl implements LibraryManagementSystem {
+
+    private static final class BookRecord {
+        private volatile Book book;     // metadata only, replaced under the write lock
+        private volatile int stock;
+
+        private BookRecord(Book book, int stock) {
+            this.book = book;
+            this.stock = stock;
+        }
+
+        private Book toBook() {
+            Book b = book.clone();
+            b.setStock(stock);
+            return b;
+        }
+    }
+
+    private static final class BorrowRecord {
+        private final int cardId;
+        private final int bookId;
+        private final long borrowTime;
+        private volatile long returnTime;
+
+        private BorrowRecord(int cardId, int bookId, long borrowTime) {
+            this.cardId = cardId;
+            this.bookId = bookId;
+            this.borrowTime = borrowTime;
+        }
+
+        private Borrow toBorrow() {
+            Borrow borrow = new Borrow(bookId, cardId);
+            borrow.setBorrowTime(borrowTime);
+            borrow.setReturnTime(returnTime);
+            return borrow;
+        }
+    }
+
+    private final ReadWriteLock tableLock = new ReentrantReadWriteLock();
+    private final StripedLock bookLocks;
+
+    private final Map<Integer, BookRecord> books = new ConcurrentHashMap<>();
+    private final Map<Book, Integer> bookKeys = new HashMap<>();     // guarded by the write lock
+    private final Map<Integer, Card> cards = new ConcurrentHashMap<>();
+    private final Map<Card, Integer> cardKeys = new HashMap<>();     // guarded by the write lock
+    /* card_id --> all borrow records of the card */
+    private final Map<Integer, ConcurrentLinkedQueue<BorrowRecord>> borrows = new ConcurrentHashMap<>();
+    /* (card_id, book_id) --> the unreturned borrow record */
+    private final Map<Long, BorrowRecord> activeBorrows = new ConcurrentHashMap<>();
+    private final AtomicInteger nextBookId = new AtomicInteger(1);
+    private final AtomicInteger nextCardId = new AtomicInteger(1);
+    private final TableVersions tableVersions = new TableVersions();
+    private final EventBus eventBus = new EventBus();
+
+    /**
+     * @param lockStripes stripes of the per-book lock table, see lock_stripes in application.yaml
+     */
+    public InMemoryLibraryManagementSystemImpl(int lockStripes) {
+        this.bookLocks = new StripedLock(lockStripes);
+    }
+
+    @Override
+    public ApiResult storeBook(Book book) {
+        tableLock.writeLock().lock();
+        try {
+            // Check if the book already exists
+            if (bookKeys.containsKey(book)) {
+                return new ApiResult(false, "The book already exists in the library.");
+            }
+            insertBook(book);
+            tableVersions.changed(TableVersions.Table.BOOK);
+            return new ApiResult(true, "The book has been successfully stored in the library.");
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public ApiResult incBookStock(int bookId, int deltaStock) {
+        tableLock.readLock().lock();
+        Lock lock = bookLocks.get(bookId);
+        lock.lock();
+        try {
+            BookRecord record = books.get(bookId);
+            if (record == null) {
+                return new ApiResult(false, "Book does not exist");
+            }
+            // Check if the final stock will be a non-negative number
+            if (record.stock + deltaStock < 0) {
+                return new ApiResult(false, "The final stock cannot be a negative number");
+            }
+            record.stock += deltaStock;
+            tableVersions.changed(TableVersions.Table.BOOK);
+            eventBus.publish(LibraryEvent.Type.STOCK, bookId, 0, deltaStock);
+            return new ApiResult(true, "The stock has been updated successfully");
+        } finally {
+            lock.unlock();
+            tableLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ApiResult storeBook(List<Book> bookList) {
+        tableLock.writeLock().lock();
+        try {
+            // Check all books first, so that nothing is stored if one of them fails
+            Set<Book> seen = new HashSet<>();
+            for (Book book : bookList) {
+                if (bookKeys.containsKey(book) || !seen.add(book)) {
+                    return new ApiResult(false, "The book already exists in the library.");
+                }
+            }
+            for (Book book : bookList) {
+                insertBook(book);
+            }
+            tableVersions.changed(TableVersions.Table.BOOK);
+            return new ApiResult(true, "All books have been successfully stored in the library.");
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+    }
+
+    private void insertBook(Book book) {
+        book.setBookId(nextBookId.getAndIncrement());
+        Book copy = book.clone();
+        books.put(copy.getBookId(), new BookRecord(copy, copy.getStock()));
+        bookKeys.put(copy, copy.getBookId());
+    }
+
+    @Override
+    public ApiResult removeBook(int bookId) {
+        tableLock.writeLock().lock();
+        try {
+            // Check if the book is currently borrowed
+            for (BorrowRecord record : activeBorrows.values()) {
+                if (record.bookId == bookId) {
+                    return new ApiResult(false, "The book is currently borrowed and not returned yet.");
+                }
+            }
+            BookRecord removed = books.remove(bookId);
+            if (removed == null) {
+                return new ApiResult(false, "The book does not exist.");
+            }
+            bookKeys.remove(removed.book);
+            // Borrow records of the book go with it, like "on delete cascade"
+            for (ConcurrentLinkedQueue<BorrowRecord> queue : borrows.values()) {
+                queue.removeIf(record -> record.bookId == bookId);
+            }
+            tableVersions.changed(TableVersions.Table.BOOK);
+            tableVersions.changed(TableVersions.Table.BORROW);
+            eventBus.publish(LibraryEvent.Type.REMOVE_BOOK, bookId, 0, 0);
+            return new ApiResult(true, "The book has been successfully removed.");
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public ApiResult modifyBookInfo(Book book) {
+        tableLock.writeLock().lock();
+        try {
+            BookRecord record = books.get(book.getBookId());
+            if (record == null) {
+                return new ApiResult(false, "The book does not exist.");
+            }
+            // The new information must not collide with another book
+            Integer other = bookKeys.get(book);
+            if (other != null && other != book.getBookId()) {
+                return new ApiResult(false, "The book already exists in the library.");
+            }
+            Book copy = book.clone();
+            copy.setStock(0);
+            bookKeys.remove(record.book);
+            bookKeys.put(copy, copy.getBookId());
+            record.book = copy;
+            tableVersions.changed(TableVersions.Table.BOOK);
+            return new ApiResult(true, "The book information has been successfully updated.");
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public ApiResult queryBook(BookQueryConditions conditions) {
+        Integer pageSize = conditions.getPageSize();
+        if (pageSize != null && pageSize <= 0) {
+            return new ApiResult(false, "Page size must be positive.");
+        }
+        if (pageSize != null) {
+            // A larger page goes on in the next page, and pageSize + 1 can not overflow
+            pageSize = Math.min(pageSize, MAX_PAGE_SIZE);
+        }
+        Book anchor = null;
+        if (conditions.getPageToken() != null) {
+            try {
+                anchor = BookPageToken.decode(conditions.getPageToken(), conditions).toAnchor();
+            } catch (IllegalArgumentException e) {
+                return new ApiResult(false, "Invalid page token: " + e.getMessage());
+            }
+        }
+        Comparator<Book> cmp = conditions.getSortBy().getComparator();
+        if (conditions.getSortOrder() == SortOrder.DESC) {
+            cmp = cmp.reversed();
+        }
+        Comparator<Book> order = cmp.thenComparingInt(Book::getBookId);
+        tableLock.readLock().lock();
+        try {
+            List<Book> results = new ArrayList<>();
+            for (BookRecord record : books.values()) {
+                Book book = record.toBook();
+                // Skip the books up to the last one of the previous page
+                if (BookQueryCache.matches(book, conditions) && (anchor == null || order.compare(book, anchor) > 0)) {
+                    results.add(book);
+                }
+            }
+            results.sort(order);
+            String nextPageToken = null;
+            if (pageSize != null && results.size() > pageSize) {
+                results = new ArrayList<>(results.subList(0, pageSize));
+                nextPageToken = BookPageToken.after(results.get(pageSize - 1), conditions).encode();
+            }
+            return new ApiResult(true, new BookQueryResults(results, nextPageToken));
+        } finally {
+            tableLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ApiResult queryBook(BookQueryConditions conditions, Consumer<Book> consumer) {
+        // The books are in memory anyway, only the page size means a limit here
+        BookQueryConditions unpaged = conditions.clone();
+        unpaged.setPageSize(null);
+        ApiResult result = queryBook(unpaged);
+        if (!result.ok) {
+            return result;
+        }
+        List<Book> results = ((BookQueryResults) result.payload).getResults();
+        int limit = conditions.getPageSize() == null ? results.size() : Math.min(conditions.getPageSize(), results.size());
+        for (int i = 0; i < limit; i++) {
+            consumer.accept(results.get(i));
+        }
+        return new ApiResult(true, limit);
+    }
+
+    @Override
+    public ApiResult borrowBook(Borrow borrow) {
+        tableLock.readLock().lock();
+        Lock lock = bookLocks.get(borrow.getBookId());
+        lock.lock();
+        try {
+            return borrowLocked(borrow);
+        } finally {
+            lock.unlock();
+            tableLock.readLock().unlock();
+        }
+    }
+
+    /* the caller holds the read lock and the stripe of the book */
+    private ApiResult borrowLocked(Borrow borrow) {
+        BookRecord record = books.get(borrow.getBookId());
+        if (record == null) {
+            return new ApiResult(false, "The book does not exist.");
+        }
+        if (!cards.containsKey(borrow.getCardId())) {
+            return new ApiResult(false, "The card does not exist.");
+        }
+        long key = borrowKey(borrow.getCardId(), borrow.getBookId());
+        if (activeBorrows.containsKey(key)) {
+            return new ApiResult(false, "The user has already borrowed the book but not returned it.");
+        }
+        if (record.stock <= 0) {
+            return new ApiResult(false, "The book is out of stock.");
+        }
+        BorrowRecord borrowRecord = new BorrowRecord(borrow.getCardId(), borrow.getBookId(), borrow.getBorrowTime());
+        activeBorrows.put(key, borrowRecord);
+        borrows.computeIfAbsent(borrow.getCardId(), k -> new ConcurrentLinkedQueue<>()).add(borrowRecord);
+        record.stock--;
+        tableVersions.changed(TableVersions.Table.BOOK);
+        tableVersions.changed(TableVersions.Table.BORROW);
+        eventBus.publish(LibraryEvent.Type.BORROW, borrow.getBookId(), borrow.getCardId(), -1);
+        return new ApiResult(true, "The book has been successfully borrowed.");
+    }
+
+    @Override
+    public ApiResult borrowBooks(List<Borrow> borrowList) {
+        tableLock.readLock().lock();
+        List<Lock> locks = bookLocks.lockAll(bookIdsOf(borrowList));
+        try {
+            List<ApiResult> results = new ArrayList<>();
+            for (Borrow borrow : borrowList) {
+                results.add(borrowLocked(borrow));
+            }
+            return new ApiResult(true, new BatchResults(results));
+        } finally {
+            bookLocks.unlockAll(locks);
+            tableLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ApiResult returnBook(Borrow borrow) {
+        tableLock.readLock().lock();
+        Lock lock = bookLocks.get(borrow.getBookId());
+        lock.lock();
+        try {
+            return returnLocked(borrow);
+        } finally {
+            lock.unlock();
+            tableLock.readLock().unlock();
+        }
+    }
+
+    /* the caller holds the read lock and the stripe of the book */
+    private ApiResult returnLocked(Borrow borrow) {
+        long key = borrowKey(borrow.getCardId(), borrow.getBookId());
+        BorrowRecord record = activeBorrows.get(key);
+        if (record == null) {
+            return new ApiResult(false, "The borrow record does not exist or the book has already been returned.");
+        }
+        if (borrow.getReturnTime() <= record.borrowTime) {
+            return new ApiResult(false, "Return time must be greater than borrow time.");
+        }
+        record.returnTime = borrow.getReturnTime();
+        activeBorrows.remove(key);
+        BookRecord bookRecord = books.get(borrow.getBookId());
+        if (bookRecord != null) {
+            bookRecord.stock++;
+        }
+        tableVersions.changed(TableVersions.Table.BOOK);
+        tableVersions.changed(TableVersions.Table.BORROW);
+        eventBus.publish(LibraryEvent.Type.RETURN, borrow.getBookId(), borrow.getCardId(), 1);
+        return new ApiResult(true, "The book has been successfully returned.");
+    }
+
+    @Override
+    public ApiResult returnBooks(List<Borrow> borrowList) {
+        tableLock.readLock().lock();
+        List<Lock> locks = bookLocks.lockAll(bookIdsOf(borrowList));
+        try {
+            List<ApiResult> results = new ArrayList<>();
+            for (Borrow borrow : borrowList) {
+                results.add(returnLocked(borrow));
+            }
+            return new ApiResult(true, new BatchResults(results));
+        } finally {
+            bookLocks.unlockAll(locks);
+            tableLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ApiResult showBorrowHistory(int cardId) {
+        return showBorrowHistory(new BorrowHistoryConditions(cardId));
+    }
+
+    @Override
+    public ApiResult showBorrowHistory(BorrowHistoryConditions conditions) {
+        Integer pageSize = conditions.getPageSize();
+        if (pageSize != null && pageSize <= 0) {
+            return new ApiResult(false, "Page size must be positive.");
+        }
+        if (pageSize != null) {
+            // A larger page goes on in the next page, and pageSize + 1 can not overflow
+            pageSize = Math.min(pageSize, MAX_PAGE_SIZE);
+        }
+        BorrowPageToken token = null;
+        if (conditions.getPageToken() != null) {
+            try {
+                token = BorrowPageToken.decode(conditions.getPageToken());
+            } catch (IllegalArgumentException e) {
+                return new ApiResult(false, "Invalid page token: " + e.getMessage());
+            }
+        }
+        tableLock.readLock().lock();
+        try {
+            int cardId = conditions.getCardId();
+            List<BorrowHistories.Item> items = new ArrayList<>();
+            ConcurrentLinkedQueue<BorrowRecord> queue = borrows.get(cardId);
+            if (queue != null) {
+                for (BorrowRecord record : queue) {
+                    if (conditions.getMinBorrowTime() != null && record.borrowTime < conditions.getMinBorrowTime()) {
+                        continue;
+                    }
+                    if (conditions.getMaxBorrowTime() != null && record.borrowTime > conditions.getMaxBorrowTime()) {
+                        continue;
+                    }
+                    BookRecord bookRecord = books.get(record.bookId);
+                    if (bookRecord != null) {
+                        BorrowHistories.Item item = new BorrowHistories.Item(cardId, bookRecord.book, record.toBorrow());
+                        if (token == null || token.precedes(item)) {
+                            items.add(item);
+                        }
+                    }
+                }
+            }
+            items.sort((x, y) -> {
+                if (x.getBorrowTime() == y.getBorrowTime()) {
+                    return x.getBookId() - y.getBookId();
+                }
+                return x.getBorrowTime() < y.getBorrowTime() ? 1 : -1;
+            });
+            String nextPageToken = null;
+            if (pageSize != null && items.size() > pageSize) {
+                items = new ArrayList<>(items.subList(0, pageSize));
+                nextPageToken = BorrowPageToken.after(items.get(pageSize - 1)).encode();
+            }
+            return new ApiResult(true, new BorrowHistories(items, nextPageToken));
+        } finally {
+            tableLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ApiResult registerCard(Card card) {
+        tableLock.writeLock().lock();
+        try {
+            // Check if the card already exists
+            if (cardKeys.containsKey(card)) {
+                return new ApiResult(false, "The card already exists.");
+            }
+            card.setCardId(nextCardId.getAndIncrement());
+            Card copy = card.clone();
+            cards.put(copy.getCardId(), copy);
+            cardKeys.put(copy, copy.getCardId());
+            tableVersions.changed(TableVersions.Table.CARD);
+            return new ApiResult(true, "The card has been successfully registered.");
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public ApiResult removeCard(int cardId) {
+        tableLock.writeLock().lock();
+        try {
+            // Check if the card is currently used to borrow a book
+            for (BorrowRecord record : activeBorrows.values()) {
+                if (record.cardId == cardId) {
+                    return new ApiResult(false, "The card is currently used to borrow a book and the book is not returned yet.");
+                }
+            }
+            Card removed = cards.remove(cardId);
+            if (removed == null) {
+                return new ApiResult(false, "The card does not exist.");
+            }
+            cardKeys.remove(removed);
+            // Borrow records of the card go with it, like "on delete cascade"
+            borrows.remove(cardId);
+            tableVersions.changed(TableVersions.Table.CARD);
+            tableVersions.changed(TableVersions.Table.BORROW);
+            return new ApiResult(true, "The card has been successfully removed.");
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public ApiResult showCards() {
+        tableLock.readLock().lock();
+        try {
+            List<Card> cardList = new ArrayList<>();
+            for (Card card : cards.values()) {
+                cardList.add(card.clone());
+            }
+            cardList.sort(Comparator.comparingInt(Card::getCardId));
+            return new ApiResult(true, new CardList(cardList));
+        } finally {
+            tableLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ApiResult resetDatabase() {
+        tableLock.writeLock().lock();
+        try {
+            books.clear();
+            bookKeys.clear();
+            cards.clear();
+            cardKeys.clear();
+            borrows.clear();
+            activeBorrows.clear();
+            nextBookId.set(1);
+            nextCardId.set(1);
+            tableVersions.changedAll();
+            return new ApiResult(true, null);
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public TableVersions getTableVersions() {
+        return tableVersions;
+    }
+
+    @Override
+    public EventBus getEventBus() {
+        return eventBus;
+    }
+
+    private static long borrowKey(int cardId, int bookId) {
+        return ((long) cardId << 32) | (bookId & 0xFFFFFFFFL);
+    }
+
+    private static List<Integer> bookIdsOf(List<Borrow> borrowList) {
+        List<Integer> bookIds = new ArrayList<>(borrowList.size());
+        for (Borrow borrow : borrowList) {
+            bookIds.add(borrow.getBookId());
+        }
+        return bookIds;
+    }
+}
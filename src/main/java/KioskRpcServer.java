@@ -0,0 +1,382 @@
+import entities.Borrow;
+import queries.ApiResult;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves borrows & returns to self-checkout kiosks, as a binary protocol over TCP.
+ *
+ * Note:
+ *      (1) every connection is watched by one selector thread, which only reads
+ *          & writes frames. calls are handled by a fixed pool of workers with a
+ *          bounded queue in front, when it is full the call is answered BUSY.
+ *      (2) a kiosk may send calls without waiting for their replies. calls on
+ *          one connection may run at the same time, and every reply carries the
+ *          id of its call, in the order they complete. a kiosk waits for the
+ *          reply before it sends a call that depends on it.
+ *      (3) at most maxInFlight calls of a connection are handled or waiting
+ *          for their replies to be sent, calls answered at once by the
+ *          selector (BAD_REQUEST, BUSY) included. the selector stops reading
+ *          from it until replies have been sent, so a kiosk that does not
+ *          read its replies can not make the server queue more.
+ *      (4) a frame with a bad length breaks the stream, the connection is
+ *          closed. an unknown op is answered BAD_REQUEST.
+ *      (5) there is no authentication, the server listens on the loopback
+ *          address unless told otherwise.
+ *
+ * Frames, big endian, every frame starts with the length of the rest:
+ *      call   int length = 21, int id, byte op, int bookID, int cardID, long time
+ *      reply  int length, int id, byte status, short length of message, message in UTF-8
+ *
+ *      op      0 ping, 1 borrow, 2 return. time is the borrow or return time, 0 for now
+ *      status  0 ok, 1 refused by the library, 2 bad request, 3 busy, 4 failed
+ */
+public class KioskRpcServer {
+
+    private static final Logger log = Logger.getLogger(KioskRpcServer.class.getName());
+
+    public static final byte OP_PING = 0;
+    public static final byte OP_BORROW = 1;
+    public static final byte OP_RETURN = 2;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_REFUSED = 1;
+    public static final byte STATUS_BAD_REQUEST = 2;
+    public static final byte STATUS_BUSY = 3;
+    public static final byte STATUS_FAILED = 4;
+
+    /* length of a call, after its length field */
+    private static final int CALL_SIZE = 4 + 1 + 4 + 4 + 8;
+    /* frames longer than this can only be garbage */
+    private static final int MAX_FRAME_SIZE = 1024;
+    /* replies written to the socket at once */
+    private static final int WRITE_BATCH = 64;
+
+    private final LibraryManagementSystem library;
+    private final int maxInFlight;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ThreadPoolExecutor workers;
+    private final Thread selectorThread;
+    /* connections with new replies, picked up by the selector thread */
+    private final Queue<Connection> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private volatile boolean running = true;
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ByteBuffer in = ByteBuffer.allocate(4096);
+        private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+        /* calls handed to the workers or answered, whose replies have not been written yet */
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.key = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        private void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            readCalls();
+            updateInterest();
+        }
+
+        /* hand the complete calls in the buffer to the workers, as many as allowed */
+        private void readCalls() throws IOException {
+            in.flip();
+            while (inFlight.get() < maxInFlight && in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < 4 || length > MAX_FRAME_SIZE) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                if (in.remaining() < 4 + length) {
+                    break;
+                }
+                in.getInt();
+                int end = in.position() + length;
+                int id = in.getInt();
+                // Every call counts until its reply is written, whoever answers it
+                inFlight.incrementAndGet();
+                if (length != CALL_SIZE) {
+                    in.position(end);
+                    out.add(encode(id, STATUS_BAD_REQUEST, "Bad call length " + length));
+                    continue;
+                }
+                Call call = new Call(this, id, in.get(), in.getInt(), in.getInt(), in.getLong());
+                try {
+                    workers.execute(call);
+                } catch (RejectedExecutionException e) {
+                    out.add(encode(id, STATUS_BUSY, "The server is busy, please retry."));
+                }
+            }
+            in.compact();
+        }
+
+        private void write() throws IOException {
+            boolean full = false;
+            while (!full) {
+                int n = 0;
+                for (ByteBuffer buffer : out) {
+                    batch[n++] = buffer;
+                    if (n == batch.length) {
+                        break;
+                    }
+                }
+                if (n == 0) {
+                    break;
+                }
+                channel.write(batch, 0, n);
+                // The socket takes no more until the next OP_WRITE
+                full = batch[n - 1].hasRemaining();
+                ByteBuffer head;
+                while ((head = out.peek()) != null && !head.hasRemaining()) {
+                    out.poll();
+                    inFlight.decrementAndGet();
+                }
+            }
+            Arrays.fill(batch, null);
+            updateInterest();
+        }
+
+        /* only on the selector thread */
+        private void updateInterest() throws IOException {
+            if (!key.isValid()) {
+                return;
+            }
+            if (inFlight.get() < maxInFlight && in.position() > 0) {
+                // Calls left in the buffer while reading was paused
+                readCalls();
+            }
+            int ops = inFlight.get() < maxInFlight ? SelectionKey.OP_READ : 0;
+            if (!out.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        /* called by a worker */
+        private void reply(ByteBuffer reply) {
+            out.add(reply);
+            ready.add(this);
+            if (wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        private void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to close a kiosk connection", e);
+            }
+        }
+    }
+
+    private final class Call implements Runnable {
+        private final Connection connection;
+        private final int id;
+        private final byte op;
+        private final int bookId;
+        private final int cardId;
+        private final long time;
+
+        private Call(Connection connection, int id, byte op, int bookId, int cardId, long time) {
+            this.connection = connection;
+            this.id = id;
+            this.op = op;
+            this.bookId = bookId;
+            this.cardId = cardId;
+            this.time = time;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer reply;
+            try {
+                reply = handle();
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Failed to handle call " + id, e);
+                reply = encode(id, STATUS_FAILED, String.valueOf(e.getMessage()));
+            }
+            connection.reply(reply);
+        }
+
+        private ByteBuffer handle() {
+            if (op == OP_PING) {
+                return encode(id, STATUS_OK, null);
+            }
+            if (op != OP_BORROW && op != OP_RETURN) {
+                return encode(id, STATUS_BAD_REQUEST, "Unknown op " + op);
+            }
+            Borrow borrow = new Borrow(bookId, cardId);
+            long now = time == 0 ? System.currentTimeMillis() : time;
+            ApiResult result;
+            if (op == OP_BORROW) {
+                borrow.setBorrowTime(now);
+                result = library.borrowBook(borrow);
+            } else {
+                borrow.setReturnTime(now);
+                result = library.returnBook(borrow);
+            }
+            return encode(id, result.ok ? STATUS_OK : STATUS_REFUSED, result.message);
+        }
+    }
+
+    public KioskRpcServer(LibraryManagementSystem library, int port, int workers, int queueSize,
+                          int maxInFlight) throws IOException {
+        this(library, null, port, workers, queueSize, maxInFlight);
+    }
+
+    /**
+     * @param library     the library to serve
+     * @param host        the address to listen on, null for the loopback address
+     * @param port        0 picks a free port, see {@link #getPort()}
+     * @param workers     number of threads that handle calls
+     * @param queueSize   max number of calls waiting for a worker
+     * @param maxInFlight max number of calls of one connection handled or waiting for their replies
+     */
+    public KioskRpcServer(LibraryManagementSystem library, String host, int port, int workers, int queueSize,
+                          int maxInFlight) throws IOException {
+        this.library = library;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(host == null
+                ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                : new InetSocketAddress(host, port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                r -> new Thread(r, "rpc-worker-" + threadCount.getAndIncrement()));
+        this.selectorThread = new Thread(this::select, "rpc-selector");
+    }
+
+    public void start() {
+        selectorThread.start();
+        log.info("Kiosk RPC listening on " + serverChannel.socket().getLocalSocketAddress());
+    }
+
+    /**
+     * stop accepting calls & close every connection, calls still running are not answered.
+     */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdown();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    private void select() {
+        try {
+            while (running) {
+                selector.select();
+                wakeupPending.set(false);
+                Connection connection;
+                while ((connection = ready.poll()) != null) {
+                    try {
+                        connection.updateInterest();
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    } catch (IOException e) {
+                        // A broken frame, or the kiosk has gone away
+                        connection.close();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            log.log(Level.SEVERE, "The kiosk RPC selector has failed", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to close the kiosk RPC server", e);
+            }
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            // Replies are tiny, do not hold them back
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            new Connection(channel);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to accept a kiosk connection", e);
+        }
+    }
+
+    private static ByteBuffer encode(int id, byte status, String message) {
+        byte[] bytes = message == null ? new byte[0] : message.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, 0xFFFF);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 1 + 2 + length);
+        buffer.putInt(4 + 1 + 2 + length).putInt(id).put(status).putShort((short) length).put(bytes, 0, length);
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -3,9 +3,13 @@ import entities.Borrow;
 import entities.Card;
 import queries.ApiResult;
 import queries.BookQueryConditions;
+import queries.BorrowHistoryConditions;
+import utils.EventBus;
+import utils.TableVersions;
 
 import java.sql.PreparedStatement;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Note:
@@ -23,6 +27,9 @@ import java.util.List;
  */
 public interface LibraryManagementSystem {
 
+    /* a larger pageSize is cut down to this, the rest of the results follows on the next pages */
+    int MAX_PAGE_SIZE = 10000;
+
     /* Interface for books */
 
     /**
@@ -99,6 +106,13 @@ public interface LibraryManagementSystem {
      *          the risk of SQL injection attack.
      *      (3) [*] if all else is equal, sort by book_id in
      *          ascending order!
+     *      (4) if conditions.pageSize is set, return at most that many
+     *          books, and a token for the next page in
+     *          {@link queries.BookQueryResults#getNextPageToken()} if
+     *          there are more. pass it back as conditions.pageToken to
+     *          continue right after the last book of this page.
+     *          a pageSize larger than {@link #MAX_PAGE_SIZE} is cut
+     *          down to it.
      *
      * @param conditions query conditions
      *
@@ -107,6 +121,26 @@ public interface LibraryManagementSystem {
      */
     ApiResult queryBook(BookQueryConditions conditions);
 
+    /**
+     * query books like {@link #queryBook(BookQueryConditions)}, but hand
+     * every book to the consumer as soon as it is read, instead of
+     * collecting all of them in a list. use it for exports & reports,
+     * so that memory usage does not grow with the size of the catalog.
+     *
+     * Note that:
+     *      (1) the rows should be fetched from the DBMS chunk by chunk,
+     *          see {@link java.sql.Statement#setFetchSize(int)}.
+     *      (2) conditions.pageSize limits the number of books, but no
+     *          token for the next page is produced.
+     *
+     * @param conditions query conditions
+     * @param consumer   receives the books in order
+     *
+     * @return the number of books delivered should be returned by
+     *         ApiResult.payload and should be an instance of Integer
+     */
+    ApiResult queryBook(BookQueryConditions conditions, Consumer<Book> consumer);
+
     /* Interface for borrow & return books */
 
     /**
@@ -127,6 +161,34 @@ public interface LibraryManagementSystem {
      */
     ApiResult returnBook(Borrow borrow);
 
+    /**
+     * borrow several books at once, eg. a stack of books scanned
+     * at the front desk for one card.
+     *
+     * Note that:
+     *      (1) all items are handled in one transaction, but each item
+     *          succeeds or fails on its own by the same rules as
+     *          {@link #borrowBook(Borrow)}.
+     *      (2) you should not call borrowBook() multiple times to
+     *          achieve this function, use JDBC batches instead.
+     *
+     * @param borrows borrow information of each item
+     * @return ApiResult.ok is false only if the whole batch failed. the
+     *         outcome of each item should be returned by ApiResult.payload
+     *         and should be an instance of {@link queries.BatchResults}
+     */
+    ApiResult borrowBooks(List<Borrow> borrows);
+
+    /**
+     * return several books at once, the batch counterpart of
+     * {@link #returnBook(Borrow)}. see {@link #borrowBooks(List)}.
+     *
+     * @param borrows borrow information of each item, include return time
+     * @return the outcome of each item should be returned by ApiResult.payload
+     *         and should be an instance of {@link queries.BatchResults}
+     */
+    ApiResult returnBooks(List<Borrow> borrows);
+
     /**
      * list all borrow histories for a specific card.
      * the returned records should be sorted by borrow_time DESC, book_id ASC
@@ -137,6 +199,27 @@ public interface LibraryManagementSystem {
      */
     ApiResult showBorrowHistory(int cardId);
 
+    /**
+     * list one slice of the borrow histories of a card, sorted like
+     * {@link #showBorrowHistory(int)}.
+     *
+     * Note that:
+     *      (1) only records with borrow_time within the given range
+     *          should be returned.
+     *      (2) if conditions.pageSize is not null, at most pageSize
+     *          records should be returned, and BorrowHistories.nextPageToken
+     *          should be set if there are more. pass it back as
+     *          conditions.pageToken to get the next page. a pageSize
+     *          larger than {@link #MAX_PAGE_SIZE} is cut down to it.
+     *      (3) the next page should be read right after the last record
+     *          of the previous one, not by skipping rows.
+     *
+     * @param conditions which card, borrow_time range & paging
+     * @return query results should be returned by ApiResult.payload
+     *         and should be an instance of {@link queries.BorrowHistories}
+     */
+    ApiResult showBorrowHistory(BorrowHistoryConditions conditions);
+
     /**
      * create a new borrow card. do nothing and return failed if
      * the card already exists.
@@ -172,4 +255,16 @@ public interface LibraryManagementSystem {
      */
     ApiResult resetDatabase();
 
+    /**
+     * versions of the tables, bumped after every change made through this
+     * library. readers may turn them into ETags, see {@link TableVersions}.
+     */
+    TableVersions getTableVersions();
+
+    /**
+     * events of borrowBook, returnBook, incBookStock & removeBook (and their
+     * batch versions), published after the commit.
+     */
+    EventBus getEventBus();
+
 }
@@ -2,28 +2,117 @@ import entities.Book;
 import entities.Borrow;
 import entities.Card;
 import queries.*;
+import utils.BookCache;
+import utils.BookQueryCache;
+import utils.BookTextIndex;
+import utils.BloomFilter;
+import utils.CardCache;
+import utils.ConnectConfig;
 import utils.DBInitializer;
 import utils.DatabaseConnector;
+import utils.EventBus;
+import utils.StripedLock;
+import utils.TableVersions;
 
+import java.math.BigDecimal;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
 
 public class LibraryManagementSystemImpl implements LibraryManagementSystem {
 
+    /* take one copy off the shelf, affects no rows if the book does not exist or is out of stock */
+    private static final String SQL_TAKE_STOCK =
+            "UPDATE book SET stock = stock - 1 WHERE book_id = ? AND stock > 0";
+    /* put one copy back on the shelf */
+    private static final String SQL_GIVE_STOCK =
+            "UPDATE book SET stock = stock + 1 WHERE book_id = ?";
+    /* insert a borrow record iff the card exists and has no unreturned copy of the book */
+    private static final String SQL_INSERT_BORROW =
+            "INSERT INTO borrow (card_id, book_id, borrow_time) " +
+                    "SELECT card_id, ?, ? FROM card WHERE card_id = ? AND NOT EXISTS (" +
+                    "SELECT * FROM borrow WHERE card_id = ? AND book_id = ? AND return_time = 0)";
+    /* close an unreturned borrow record iff return_time is greater than borrow_time */
+    private static final String SQL_CLOSE_BORROW =
+            "UPDATE borrow SET return_time = ? " +
+                    "WHERE card_id = ? AND book_id = ? AND return_time = 0 AND borrow_time < ?";
+
+    /* max book_ids per IN list, stays well below the 2100 parameters SQL Server allows */
+    private static final int ID_LOOKUP_SIZE = 512;
+    /* books per key lookup, 5 parameters each stays well below the 2100 parameters SQL Server allows */
+    private static final int KEY_LOOKUP_SIZE = 256;
+    /* look up books by their unique keys, KEY_LOOKUP_SIZE keys at a time */
+    private static final String SQL_LOOKUP_BOOK_KEYS;
+
+    static {
+        StringBuilder sql = new StringBuilder(
+                "SELECT book_id, category, title, press, publish_year, author FROM book WHERE ");
+        for (int k = 0; k < KEY_LOOKUP_SIZE; k++) {
+            if (k > 0) {
+                sql.append(" OR ");
+            }
+            sql.append("(category = ? AND title = ? AND press = ? AND publish_year = ? AND author = ?)");
+        }
+        SQL_LOOKUP_BOOK_KEYS = sql.toString();
+    }
+
     private final DatabaseConnector connector;
+    /* gathers borrows of the same book into one transaction, null if disabled */
+    private final BorrowCoalescer coalescer;
+    /* serializes stock changes of the same book in this process, before they reach the database */
+    private final StripedLock bookLocks;
+    /* results of recent book queries, null if disabled */
+    private final BookQueryCache queryCache;
+    /* candidate book_ids of fuzzy conditions, null if disabled */
+    private final BookTextIndex textIndex;
+    /* more candidates than this are not worth an IN list, the LIKE scan is used instead. at most ID_LOOKUP_SIZE */
+    private final int textIndexMaxCandidates;
+    /* which cards exist, null if disabled */
+    private final CardCache cardCache;
+    /* info of popular books, null if disabled */
+    private final BookCache bookCache;
+    private final TableVersions tableVersions = new TableVersions();
+    private final EventBus eventBus = new EventBus();
 
     public LibraryManagementSystemImpl(DatabaseConnector connector) {
         this.connector = connector;
+        ConnectConfig conf = connector.getConf();
+        this.bookLocks = new StripedLock(conf.getLockStripes());
+        if (conf.getQueryCacheSize() > 0) {
+            this.queryCache = new BookQueryCache(conf.getQueryCacheSize(), conf.getQueryCacheTtl());
+        } else {
+            this.queryCache = null;
+        }
+        this.textIndexMaxCandidates = Math.min(conf.getTextIndexMaxCandidates(), ID_LOOKUP_SIZE);
+        this.textIndex = textIndexMaxCandidates > 0 ? new BookTextIndex() : null;
+        this.cardCache = conf.getCardCacheSize() > 0 ? new CardCache(conf.getCardCacheSize()) : null;
+        this.bookCache = conf.getBookCacheSize() > 0 ? new BookCache(conf.getBookCacheSize(), conf.getBookCacheTtl()) : null;
+        if (conf.getBorrowCoalesceWindow() > 0) {
+            this.coalescer = new BorrowCoalescer(this, conf.getBorrowCoalesceWindow(),
+                    conf.getBorrowCoalesceMaxBatch(), conf.getPoolMaxSize());
+            // Run the waiting borrows & stop the flushers before the pool goes away
+            connector.onRelease(coalescer::close);
+        } else {
+            this.coalescer = null;
+        }
     }
 
     @Override
     public ApiResult storeBook(Book book) {
-        Connection conn = connector.getConn();
+        Connection conn = null;
         try {
+            conn = connector.getConn();
             // Check if the book already exists
-            PreparedStatement checkStmt = conn.prepareStatement(
+            PreparedStatement checkStmt = connector.prepare(conn,
                     "SELECT * FROM book WHERE category = ? AND title = ? AND press = ? AND publish_year = ? AND author = ?"
             );
             checkStmt.setString(1, book.getCategory());
@@ -38,7 +127,7 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             }
 
             // Insert the new book
-            PreparedStatement insertStmt = conn.prepareStatement(
+            PreparedStatement insertStmt = connector.prepare(conn,
                     "INSERT INTO book (category, title, press, publish_year, author, price, stock) VALUES (?, ?, ?, ?, ?, ?, ?)",
                     Statement.RETURN_GENERATED_KEYS
             );
@@ -57,120 +146,226 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
                 book.setBookId(generatedKeys.getInt(1));
             }
 
+            // Index the book before it becomes visible, so text searches never miss it
+            if (textIndex != null) {
+                textIndex.add(book);
+            }
+            conn.commit();
+            invalidateBook(book);
+
             // The book has been successfully stored
             return new ApiResult(true, "The book has been successfully stored in the library.");
         } catch (SQLException e) {
+            rollback(conn);
             e.printStackTrace();
             return new ApiResult(false, e.getMessage());
+        } finally {
+            connector.releaseConn(conn);
         }
     }
 
     public ApiResult incBookStock(int bookId, int deltaStock) {
-        Connection conn = connector.getConn();
+        // Serialize stock changes of the same book in this process
+        Lock lock = bookLocks.get(bookId);
+        lock.lock();
+        Connection conn = null;
         try {
-            // Get the book from the database
-            PreparedStatement stmt = conn.prepareStatement("SELECT * FROM book WHERE book_id = ?");
-            stmt.setInt(1, bookId);
-            ResultSet rs = stmt.executeQuery();
-
-            if (!rs.next()) {
-                // The book does not exist
-                return new ApiResult(false, "Book does not exist");
-            }
-
-            int currentStock = rs.getInt("stock");
-
-            // Check if the final stock will be a non-negative number
-            if (currentStock + deltaStock < 0) {
+            conn = connector.getConn();
+            // Update the stock of the book iff the final stock is a non-negative number
+            PreparedStatement stmt = connector.prepare(conn,
+                    "UPDATE book SET stock = stock + ? WHERE book_id = ? AND stock + ? >= 0");
+            stmt.setInt(1, deltaStock);
+            stmt.setInt(2, bookId);
+            stmt.setInt(3, deltaStock);
+            if (stmt.executeUpdate() == 0) {
+                // Only the failure path needs to know why
+                stmt = connector.prepare(conn, "SELECT stock FROM book WHERE book_id = ?");
+                stmt.setInt(1, bookId);
+                ResultSet rs = stmt.executeQuery();
+                if (!rs.next()) {
+                    // The book does not exist
+                    return new ApiResult(false, "Book does not exist");
+                }
                 return new ApiResult(false, "The final stock cannot be a negative number");
             }
 
-            // Update the stock of the book
-            stmt = conn.prepareStatement("UPDATE book SET stock = stock + ? WHERE book_id = ?");
-            stmt.setInt(1, deltaStock);
-            stmt.setInt(2, bookId);
-            stmt.executeUpdate();
+            conn.commit();
+            invalidateStock(bookId);
+            eventBus.publish(LibraryEvent.Type.STOCK, bookId, 0, deltaStock);
 
             return new ApiResult(true, "The stock has been updated successfully");
         } catch (SQLException e) {
+            rollback(conn);
             e.printStackTrace();
             return new ApiResult(false, e.getMessage());
+        } finally {
+            connector.releaseConn(conn);
+            lock.unlock();
         }
     }
     @Override
     public ApiResult storeBook(List<Book> books) {
-        Connection conn = connector.getConn();
+        // Two copies of the same book can not both be stored
+        if (new HashSet<>(books).size() < books.size()) {
+            return new ApiResult(false, "The book already exists in the library.");
+        }
+        Connection conn = null;
         try {
-            // Start a transaction
-            conn.setAutoCommit(false);
-
-            // Prepare the SQL statement
-            PreparedStatement insertStmt = conn.prepareStatement(
-                    "INSERT INTO book (category, title, press, publish_year, author, price, stock) VALUES (?, ?, ?, ?, ?, ?, ?)",
-                    Statement.RETURN_GENERATED_KEYS
-            );
+            conn = connector.getConn();
 
-            for (Book book : books) {
-                // Check if the book already exists
-                PreparedStatement checkStmt = conn.prepareStatement(
-                        "SELECT * FROM book WHERE category = ? AND title = ? AND press = ? AND publish_year = ? AND author = ?"
-                );
-                checkStmt.setString(1, book.getCategory());
-                checkStmt.setString(2, book.getTitle());
-                checkStmt.setString(3, book.getPress());
-                checkStmt.setInt(4, book.getPublishYear());
-                checkStmt.setString(5, book.getAuthor());
+            // Check if any of the books already exists, a few hundred books per query
+            for (int from = 0; from < books.size(); from += KEY_LOOKUP_SIZE) {
+                PreparedStatement checkStmt = prepareKeyLookup(conn, books, from,
+                        Math.min(books.size(), from + KEY_LOOKUP_SIZE));
                 ResultSet rs = checkStmt.executeQuery();
                 if (rs.next()) {
-                    // The book already exists, rollback the transaction
-                    conn.rollback();
+                    // The book already exists
                     return new ApiResult(false, "The book already exists in the library.");
                 }
+            }
 
-                // Insert the new book
-                insertStmt.setString(1, book.getCategory());
-                insertStmt.setString(2, book.getTitle());
-                insertStmt.setString(3, book.getPress());
-                insertStmt.setInt(4, book.getPublishYear());
-                insertStmt.setString(5, book.getAuthor());
-                insertStmt.setDouble(6, book.getPrice());
-                insertStmt.setInt(7, book.getStock());
-                insertStmt.executeUpdate();
-
-                // Retrieve the generated book_id
+            // Prefer the native bulk load of the DBMS, fall back to batched inserts if it is refused
+            if (connector.getConf().isBulkLoad() && bulkLoadBooks(conn, books)) {
+                lookupBookIds(conn, books, 0, books.size());
+                return commitStoredBooks(conn, books);
+            }
+
+            // Insert the books chunk by chunk, one batch per chunk
+            PreparedStatement insertStmt = connector.prepare(conn,
+                    "INSERT INTO book (category, title, press, publish_year, author, price, stock) VALUES (?, ?, ?, ?, ?, ?, ?)",
+                    Statement.RETURN_GENERATED_KEYS
+            );
+            int batchSize = connector.getConf().getBatchSize();
+            for (int from = 0; from < books.size(); from += batchSize) {
+                int to = Math.min(books.size(), from + batchSize);
+                for (int i = from; i < to; i++) {
+                    Book book = books.get(i);
+                    insertStmt.setString(1, book.getCategory());
+                    insertStmt.setString(2, book.getTitle());
+                    insertStmt.setString(3, book.getPress());
+                    insertStmt.setInt(4, book.getPublishYear());
+                    insertStmt.setString(5, book.getAuthor());
+                    insertStmt.setDouble(6, book.getPrice());
+                    insertStmt.setInt(7, book.getStock());
+                    insertStmt.addBatch();
+                }
+                insertStmt.executeBatch();
+
+                // Retrieve the generated book_ids, they come in insert order
+                List<Integer> keys = new ArrayList<>(to - from);
                 ResultSet generatedKeys = insertStmt.getGeneratedKeys();
-                if (generatedKeys.next()) {
-                    book.setBookId(generatedKeys.getInt(1));
+                while (generatedKeys.next()) {
+                    keys.add(generatedKeys.getInt(1));
+                }
+                if (keys.size() == to - from) {
+                    for (int i = from; i < to; i++) {
+                        books.get(i).setBookId(keys.get(i - from));
+                    }
+                } else {
+                    // Some drivers only return the key of the last row of a batch
+                    lookupBookIds(conn, books, from, to);
                 }
             }
 
-            // All books have been successfully stored, commit the transaction
-            conn.commit();
-
-            return new ApiResult(true, "All books have been successfully stored in the library.");
+            return commitStoredBooks(conn, books);
         } catch (SQLException e) {
             // An error occurred, rollback the transaction
-            try {
-                conn.rollback();
-            } catch (SQLException ex) {
-                ex.printStackTrace();
-            }
+            rollback(conn);
             e.printStackTrace();
             return new ApiResult(false, e.getMessage());
         } finally {
-            try {
-                conn.setAutoCommit(true);
-            } catch (SQLException e) {
-                e.printStackTrace();
+            connector.releaseConn(conn);
+        }
+    }
+
+    private ApiResult commitStoredBooks(Connection conn, List<Book> books) throws SQLException {
+        // Index the books before they become visible, so text searches never miss them
+        if (textIndex != null) {
+            for (Book book : books) {
+                textIndex.add(book);
             }
         }
+        // All books have been successfully stored, commit the transaction
+        conn.commit();
+        for (Book book : books) {
+            invalidateBook(book);
+        }
+
+        return new ApiResult(true, "All books have been successfully stored in the library.");
     }
+
+    /**
+     * load the books through {@link DBInitializer#bulkLoadBooks}, a failed load is
+     * undone up to a savepoint, so that the caller can still insert them another way.
+     *
+     * @return false if the books have not been loaded
+     */
+    private boolean bulkLoadBooks(Connection conn, List<Book> books) {
+        DBInitializer initializer = connector.getConf().getType().getDbInitializer();
+        Savepoint savepoint = null;
+        try {
+            savepoint = conn.setSavepoint();
+            return initializer.bulkLoadBooks(conn, books);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            if (savepoint != null) {
+                try {
+                    conn.rollback(savepoint);
+                } catch (SQLException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * look up books[from, to) by their unique keys. the statement always has
+     * KEY_LOOKUP_SIZE slots, the unused ones repeat the last book, so it is
+     * prepared once per connection.
+     */
+    private PreparedStatement prepareKeyLookup(Connection conn, List<Book> books, int from, int to) throws SQLException {
+        PreparedStatement stmt = connector.prepare(conn, SQL_LOOKUP_BOOK_KEYS);
+        int index = 1;
+        for (int k = 0; k < KEY_LOOKUP_SIZE; k++) {
+            Book book = books.get(Math.min(from + k, to - 1));
+            stmt.setString(index++, book.getCategory());
+            stmt.setString(index++, book.getTitle());
+            stmt.setString(index++, book.getPress());
+            stmt.setInt(index++, book.getPublishYear());
+            stmt.setString(index++, book.getAuthor());
+        }
+        return stmt;
+    }
+
+    /* find the book_ids of books[from, to) that have just been inserted */
+    private void lookupBookIds(Connection conn, List<Book> books, int from, int to) throws SQLException {
+        for (int start = from; start < to; start += KEY_LOOKUP_SIZE) {
+            int end = Math.min(to, start + KEY_LOOKUP_SIZE);
+            Map<Book, Integer> ids = new HashMap<>();
+            ResultSet rs = prepareKeyLookup(conn, books, start, end).executeQuery();
+            while (rs.next()) {
+                Book key = new Book(rs.getString("category"), rs.getString("title"), rs.getString("press"),
+                        rs.getInt("publish_year"), rs.getString("author"), 0, 0);
+                ids.put(key, rs.getInt("book_id"));
+            }
+            for (int i = start; i < end; i++) {
+                Integer id = ids.get(books.get(i));
+                if (id == null) {
+                    throw new SQLException("Can not find the book_id of " + books.get(i));
+                }
+                books.get(i).setBookId(id);
+            }
+        }
+    }
+
     @Override
     public ApiResult removeBook(int bookId) {
-        Connection conn = connector.getConn();
+        Connection conn = null;
         try {
+            conn = connector.getConn();
             // Check if the book is currently borrowed
-            PreparedStatement checkStmt = conn.prepareStatement(
+            PreparedStatement checkStmt = connector.prepare(conn,
                     "SELECT * FROM borrow WHERE book_id = ? AND return_time = 0"
             );
             checkStmt.setInt(1, bookId);
@@ -181,7 +376,7 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             }
 
             // Delete the book from the database
-            PreparedStatement deleteStmt = conn.prepareStatement(
+            PreparedStatement deleteStmt = connector.prepare(conn,
                     "DELETE FROM book WHERE book_id = ?"
             );
             deleteStmt.setInt(1, bookId);
@@ -192,30 +387,35 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
                 return new ApiResult(false, "The book does not exist.");
             }
 
+            conn.commit();
+            if (textIndex != null) {
+                textIndex.remove(bookId);
+            }
+            invalidateBook(bookId);
+            // Its borrow records are gone with it
+            tableVersions.changed(TableVersions.Table.BORROW);
+            eventBus.publish(LibraryEvent.Type.REMOVE_BOOK, bookId, 0, 0);
+
             // The book has been successfully removed
             return new ApiResult(true, "The book has been successfully removed.");
         } catch (SQLException e) {
+            rollback(conn);
             e.printStackTrace();
             return new ApiResult(false, e.getMessage());
+        } finally {
+            connector.releaseConn(conn);
         }
     }
     @Override
     public ApiResult modifyBookInfo(Book book) {
-        Connection conn = connector.getConn();
+        // Serialize changes of the same book, so the text index sees them in commit order
+        Lock lock = bookLocks.get(book.getBookId());
+        lock.lock();
+        Connection conn = null;
         try {
-            // Check if the book exists
-            PreparedStatement checkStmt = conn.prepareStatement(
-                    "SELECT * FROM book WHERE book_id = ?"
-            );
-            checkStmt.setInt(1, book.getBookId());
-            ResultSet rs = checkStmt.executeQuery();
-            if (!rs.next()) {
-                // The book does not exist
-                return new ApiResult(false, "The book does not exist.");
-            }
-
+            conn = connector.getConn();
             // Update the book information
-            PreparedStatement updateStmt = conn.prepareStatement(
+            PreparedStatement updateStmt = connector.prepare(conn,
                     "UPDATE book SET category = ?, title = ?, press = ?, publish_year = ?, author = ?, price = ? WHERE book_id = ?"
             );
             updateStmt.setString(1, book.getCategory());
@@ -225,125 +425,623 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             updateStmt.setString(5, book.getAuthor());
             updateStmt.setDouble(6, book.getPrice());
             updateStmt.setInt(7, book.getBookId());
-            updateStmt.executeUpdate();
+            if (updateStmt.executeUpdate() == 0) {
+                // The book does not exist
+                return new ApiResult(false, "The book does not exist.");
+            }
+
+            // Index the new info before it becomes visible, drop the old info after
+            if (textIndex != null) {
+                textIndex.add(book);
+            }
+            conn.commit();
+            if (textIndex != null) {
+                textIndex.replace(book);
+            }
+            invalidateBook(book);
 
             // The book information has been successfully updated
             return new ApiResult(true, "The book information has been successfully updated.");
         } catch (SQLException e) {
+            rollback(conn);
             e.printStackTrace();
             return new ApiResult(false, e.getMessage());
+        } finally {
+            connector.releaseConn(conn);
+            lock.unlock();
         }
     }
     @Override
     public ApiResult queryBook(BookQueryConditions conditions) {
-        Connection conn = connector.getConn();
+        Integer pageSize = conditions.getPageSize();
+        BookPageToken token;
         try {
-            StringBuilder query = new StringBuilder("SELECT * FROM book WHERE 1=1");
-            if (conditions.getCategory() != null) {
-                query.append(" AND category = ?");
-            }
-            if (conditions.getTitle() != null) {
-                query.append(" AND title LIKE ?");
-            }
-            if (conditions.getPress() != null) {
-                query.append(" AND press LIKE ?");
+            token = pageTokenOf(conditions);
+        } catch (IllegalArgumentException e) {
+            return new ApiResult(false, e.getMessage());
+        }
+        if (pageSize != null) {
+            // A larger page goes on in the next page, and pageSize + 1 can not overflow
+            pageSize = Math.min(pageSize, MAX_PAGE_SIZE);
+        }
+        // Serve repeated queries from the cache
+        long generation = 0;
+        if (queryCache != null) {
+            BookQueryResults cached = queryCache.get(conditions);
+            if (cached != null) {
+                return new ApiResult(true, cached);
             }
-            if (conditions.getMinPublishYear() != null) {
-                query.append(" AND publish_year >= ?");
+            generation = queryCache.generation();
+        }
+        // Look up fuzzy conditions in the text index, no candidate means no result
+        List<Integer> candidates = textCandidates(conditions);
+        if (candidates != null && candidates.isEmpty()) {
+            return new ApiResult(true, new BookQueryResults(new ArrayList<>()));
+        }
+        Connection conn = null;
+        try {
+            conn = connector.getConn();
+            PreparedStatement stmt = prepareBookQuery(conn, conditions, token, candidates);
+            // Fetch one more row to find out whether there is a next page
+            stmt.setMaxRows(pageSize == null ? 0 : pageSize + 1);
+            stmt.setFetchSize(0);
+            ResultSet rs = stmt.executeQuery();
+            List<Book> books = new ArrayList<>();
+            while (rs.next()) {
+                books.add(readBook(rs));
             }
-            if (conditions.getMaxPublishYear() != null) {
-                query.append(" AND publish_year <= ?");
+
+            // Cut off the extra row, the last book of this page starts the next one
+            String nextPageToken = null;
+            if (pageSize != null && books.size() > pageSize) {
+                books = new ArrayList<>(books.subList(0, pageSize));
+                nextPageToken = BookPageToken.after(books.get(pageSize - 1), conditions).encode();
             }
-            if (conditions.getAuthor() != null) {
-                query.append(" AND author LIKE ?");
+
+            // Create a new BookQueryResults object and add the books to it
+            BookQueryResults results = new BookQueryResults(books, nextPageToken);
+            if (queryCache != null) {
+                queryCache.put(conditions, results, generation);
             }
-            if (conditions.getMinPrice() != null) {
-                query.append(" AND price >= ?");
+
+            // Return the results as the payload of the ApiResult
+            return new ApiResult(true, results);
+        } catch (SQLException e) {
+            rollback(conn);
+            e.printStackTrace();
+            return new ApiResult(false, e.getMessage());
+        } finally {
+            connector.releaseConn(conn);
+        }
+    }
+
+    @Override
+    public ApiResult queryBook(BookQueryConditions conditions, Consumer<Book> consumer) {
+        Integer pageSize = conditions.getPageSize();
+        BookPageToken token;
+        try {
+            token = pageTokenOf(conditions);
+        } catch (IllegalArgumentException e) {
+            return new ApiResult(false, e.getMessage());
+        }
+        List<Integer> candidates = textCandidates(conditions);
+        if (candidates != null && candidates.isEmpty()) {
+            return new ApiResult(true, 0);
+        }
+        Connection conn = null;
+        try {
+            conn = connector.getConn();
+            PreparedStatement stmt = prepareBookQuery(conn, conditions, token, candidates);
+            stmt.setMaxRows(pageSize == null ? 0 : pageSize);
+            // Let the driver fetch the rows chunk by chunk through a cursor,
+            // instead of reading the whole result into memory
+            int fetchSize = connector.getConf().getFetchSize();
+            stmt.setFetchSize(pageSize == null ? fetchSize : Math.min(fetchSize, pageSize));
+            int count = 0;
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(readBook(rs));
+                    count++;
+                }
             }
-            if (conditions.getMaxPrice() != null) {
-                query.append(" AND price <= ?");
+
+            // Return the number of books delivered as the payload of the ApiResult
+            return new ApiResult(true, count);
+        } catch (SQLException e) {
+            rollback(conn);
+            e.printStackTrace();
+            return new ApiResult(false, e.getMessage());
+        } finally {
+            connector.releaseConn(conn);
+        }
+    }
+
+    /**
+     * check the paging conditions, and decode the page token if there is one.
+     */
+    private static BookPageToken pageTokenOf(BookQueryConditions conditions) throws IllegalArgumentException {
+        if (conditions.getPageSize() != null && conditions.getPageSize() <= 0) {
+            throw new IllegalArgumentException("Page size must be positive.");
+        }
+        if (conditions.getPageToken() == null) {
+            return null;
+        }
+        try {
+            return BookPageToken.decode(conditions.getPageToken(), conditions);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid page token: " + e.getMessage());
+        }
+    }
+
+    /**
+     * build the query of {@link #queryBook} and bind its parameters.
+     */
+    private PreparedStatement prepareBookQuery(Connection conn, BookQueryConditions conditions,
+                                               BookPageToken token, List<Integer> candidates) throws SQLException {
+        StringBuilder query = new StringBuilder("SELECT * FROM book WHERE 1=1");
+        if (conditions.getCategory() != null) {
+            query.append(" AND category = ?");
+        }
+        if (conditions.getTitle() != null) {
+            query.append(" AND title LIKE ?");
+        }
+        if (conditions.getPress() != null) {
+            query.append(" AND press LIKE ?");
+        }
+        if (conditions.getMinPublishYear() != null) {
+            query.append(" AND publish_year >= ?");
+        }
+        if (conditions.getMaxPublishYear() != null) {
+            query.append(" AND publish_year <= ?");
+        }
+        if (conditions.getAuthor() != null) {
+            query.append(" AND author LIKE ?");
+        }
+        if (conditions.getMinPrice() != null) {
+            query.append(" AND price >= ?");
+        }
+        if (conditions.getMaxPrice() != null) {
+            query.append(" AND price <= ?");
+        }
+        // Round the candidate list up to a power of two, so that few distinct statements get cached
+        int slots = 0;
+        if (candidates != null) {
+            slots = 1;
+            while (slots < candidates.size()) {
+                slots <<= 1;
             }
-            PreparedStatement stmt = conn.prepareStatement(query.toString());
-            int index = 1;
-            if (conditions.getCategory() != null) {
-                stmt.setString(index++, conditions.getCategory());
+            query.append(" AND book_id IN (?");
+            for (int i = 1; i < slots; i++) {
+                query.append(", ?");
             }
-            if (conditions.getTitle() != null) {
-                stmt.setString(index++, "%" + conditions.getTitle() + "%");
+            query.append(')');
+        }
+        // Continue right after the last book of the previous page
+        String sortColumn = conditions.getSortBy().getValue();
+        String after = conditions.getSortOrder() == SortOrder.DESC ? " < ?" : " > ?";
+        if (token != null) {
+            if (conditions.getSortBy() == Book.SortColumn.BOOK_ID) {
+                query.append(" AND book_id").append(after);
+            } else {
+                query.append(" AND (").append(sortColumn).append(after)
+                        .append(" OR (").append(sortColumn).append(" = ? AND book_id > ?))");
             }
-            if (conditions.getPress() != null) {
-                stmt.setString(index++, "%" + conditions.getPress() + "%");
+        }
+        // Let the DBMS sort, so it can use an index and stream the rows in order.
+        // If all else is equal, sort by book_id in ascending order
+        query.append(" ORDER BY ").append(sortColumn)
+                .append(' ').append(conditions.getSortOrder().getValue());
+        if (conditions.getSortBy() != Book.SortColumn.BOOK_ID) {
+            query.append(", book_id ASC");
+        }
+        PreparedStatement stmt = connector.prepare(conn, query.toString());
+        int index = 1;
+        if (conditions.getCategory() != null) {
+            stmt.setString(index++, conditions.getCategory());
+        }
+        if (conditions.getTitle() != null) {
+            stmt.setString(index++, "%" + conditions.getTitle() + "%");
+        }
+        if (conditions.getPress() != null) {
+            stmt.setString(index++, "%" + conditions.getPress() + "%");
+        }
+        if (conditions.getMinPublishYear() != null) {
+            stmt.setInt(index++, conditions.getMinPublishYear());
+        }
+        if (conditions.getMaxPublishYear() != null) {
+            stmt.setInt(index++, conditions.getMaxPublishYear());
+        }
+        if (conditions.getAuthor() != null) {
+            stmt.setString(index++, "%" + conditions.getAuthor() + "%");
+        }
+        if (conditions.getMinPrice() != null) {
+            stmt.setDouble(index++, conditions.getMinPrice());
+        }
+        if (conditions.getMaxPrice() != null) {
+            stmt.setDouble(index++, conditions.getMaxPrice());
+        }
+        for (int i = 0; i < slots; i++) {
+            stmt.setInt(index++, candidates.get(Math.min(i, candidates.size() - 1)));
+        }
+        if (token != null) {
+            if (token.getKey() != null) {
+                setSortKey(stmt, index++, token.getKey());
+                setSortKey(stmt, index++, token.getKey());
             }
-            if (conditions.getMinPublishYear() != null) {
-                stmt.setInt(index++, conditions.getMinPublishYear());
+            stmt.setInt(index, token.getBookId());
+        }
+        return stmt;
+    }
+
+    /**
+     * resolve the fuzzy conditions to candidate book_ids through the text index.
+     *
+     * @return sorted candidates, null if the index can not narrow the query down
+     */
+    private List<Integer> textCandidates(BookQueryConditions conditions) {
+        if (textIndex == null || (conditions.getTitle() == null
+                && conditions.getPress() == null && conditions.getAuthor() == null)) {
+            return null;
+        }
+        if (!textIndex.isReady() && !fillTextIndex()) {
+            return null;
+        }
+        Set<Integer> candidates = textIndex.candidates(conditions);
+        if (candidates == null || candidates.size() > textIndexMaxCandidates) {
+            return null;
+        }
+        List<Integer> sorted = new ArrayList<>(candidates);
+        sorted.sort(null);
+        return sorted;
+    }
+
+    /* fill the text index from the database on first use */
+    private boolean fillTextIndex() {
+        synchronized (textIndex) {
+            if (textIndex.isReady()) {
+                return true;
             }
-            if (conditions.getMaxPublishYear() != null) {
-                stmt.setInt(index++, conditions.getMaxPublishYear());
+            Connection conn = null;
+            try {
+                conn = connector.getConn();
+                PreparedStatement stmt = connector.prepare(conn, "SELECT book_id, title, press, author FROM book");
+                stmt.setFetchSize(connector.getConf().getFetchSize());
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        textIndex.add(rs.getInt("book_id"), rs.getString("title"),
+                                rs.getString("press"), rs.getString("author"));
+                    }
+                }
+                textIndex.setReady(true);
+                return true;
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return false;
+            } finally {
+                connector.releaseConn(conn);
             }
-            if (conditions.getAuthor() != null) {
-                stmt.setString(index++, "%" + conditions.getAuthor() + "%");
+        }
+    }
+
+    /**
+     * @return false if the card surely does not exist
+     */
+    private boolean cardMayExist(int cardId) {
+        if (cardCache == null) {
+            return true;
+        }
+        if (!cardCache.isReady() && !fillCardCache()) {
+            return true;
+        }
+        return cardCache.mayExist(cardId);
+    }
+
+    /* fill the card cache from the database on first use */
+    private boolean fillCardCache() {
+        Connection conn = null;
+        try {
+            // Get the connection first, registerCard waits on the cache while holding one
+            conn = connector.getConn();
+            synchronized (cardCache) {
+                if (cardCache.isReady()) {
+                    return true;
+                }
+                PreparedStatement countStmt = connector.prepare(conn, "SELECT COUNT(*) FROM card");
+                ResultSet rs = countStmt.executeQuery();
+                rs.next();
+                BloomFilter filter = CardCache.newFilter(rs.getInt(1));
+                PreparedStatement stmt = connector.prepare(conn, "SELECT card_id FROM card");
+                stmt.setFetchSize(connector.getConf().getFetchSize());
+                try (ResultSet ids = stmt.executeQuery()) {
+                    while (ids.next()) {
+                        filter.add(ids.getInt(1));
+                    }
+                }
+                cardCache.fill(filter);
+                return true;
             }
-            if (conditions.getMinPrice() != null) {
-                stmt.setDouble(index++, conditions.getMinPrice());
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            connector.releaseConn(conn);
+        }
+    }
+
+    private static Card readCard(ResultSet rs) throws SQLException {
+        Card card = new Card();
+        card.setCardId(rs.getInt("card_id"));
+        card.setName(rs.getString("name"));
+        card.setDepartment(rs.getString("department"));
+        card.setType(Card.CardType.values(rs.getString("type")));
+        return card;
+    }
+
+    private static Book readBook(ResultSet rs) throws SQLException {
+        Book book = new Book();
+        book.setBookId(rs.getInt("book_id"));
+        book.setCategory(rs.getString("category"));
+        book.setTitle(rs.getString("title"));
+        book.setPress(rs.getString("press"));
+        book.setPublishYear(rs.getInt("publish_year"));
+        book.setAuthor(rs.getString("author"));
+        book.setPrice(rs.getDouble("price"));
+        book.setStock(rs.getInt("stock"));
+        return book;
+    }
+
+    private static void setSortKey(PreparedStatement stmt, int index, Object key) throws SQLException {
+        if (key instanceof Integer) {
+            stmt.setInt(index, (Integer) key);
+        } else if (key instanceof Double) {
+            // price is a decimal column, compare it exactly
+            stmt.setBigDecimal(index, BigDecimal.valueOf((Double) key));
+        } else {
+            stmt.setString(index, (String) key);
+        }
+    }
+
+    @Override
+    public ApiResult borrowBook(Borrow borrow) {
+        // Refuse unknown cards before locking the book
+        if (!cardMayExist(borrow.getCardId())) {
+            return new ApiResult(false, "The card does not exist.");
+        }
+        if (coalescer != null) {
+            // Share one transaction with the other borrowers of the same book
+            return coalescer.borrow(borrow);
+        }
+        Lock lock = bookLocks.get(borrow.getBookId());
+        lock.lock();
+        Connection conn = null;
+        try {
+            conn = connector.getConn();
+            // Take one copy off the shelf, this fails if the book does not exist or is out of stock.
+            // The book row is locked first, so concurrent borrowers queue here instead of deadlocking
+            // on the foreign key check of the insert below.
+            PreparedStatement stockStmt = connector.prepare(conn, SQL_TAKE_STOCK);
+            stockStmt.setInt(1, borrow.getBookId());
+            if (stockStmt.executeUpdate() == 0) {
+                return diagnoseBorrowFailure(conn, borrow);
             }
-            if (conditions.getMaxPrice() != null) {
-                stmt.setDouble(index++, conditions.getMaxPrice());
+
+            // Insert the new borrow record iff the card exists and the user has not
+            // borrowed the book without returning it
+            PreparedStatement insertStmt = connector.prepare(conn, SQL_INSERT_BORROW);
+            bindInsertBorrow(insertStmt, borrow);
+            if (insertStmt.executeUpdate() == 0) {
+                // Put the copy back before finding out what went wrong
+                conn.rollback();
+                return diagnoseBorrowFailure(conn, borrow);
             }
-            ResultSet rs = stmt.executeQuery();
-            List<Book> books = new ArrayList<>();
-            while (rs.next()) {
-                Book book = new Book();
-                book.setBookId(rs.getInt("book_id"));
-                book.setCategory(rs.getString("category"));
-                book.setTitle(rs.getString("title"));
-                book.setPress(rs.getString("press"));
-                book.setPublishYear(rs.getInt("publish_year"));
-                book.setAuthor(rs.getString("author"));
-                book.setPrice(rs.getDouble("price"));
-                book.setStock(rs.getInt("stock"));
-                books.add(book);
-            }
-            Comparator<Book> cmp = conditions.getSortBy().getComparator();
-            if (conditions.getSortOrder() == SortOrder.DESC) {
-                cmp = cmp.reversed();
-            }
-            Comparator<Book> comparator = cmp;
-            Comparator<Book> sortComparator = (lhs, rhs) -> {
-                if (comparator.compare(lhs, rhs) == 0) {
-                    return lhs.getBookId() - rhs.getBookId();
-                }
-                return comparator.compare(lhs, rhs);
-            };
-            books.sort(sortComparator);
 
-            // Create a new BookQueryResults object and add the books to it
-            BookQueryResults results = new BookQueryResults(books);
+            conn.commit();
+            afterLoanCommit(borrow, LibraryEvent.Type.BORROW);
 
-            // Return the results as the payload of the ApiResult
-            return new ApiResult(true, results);
+            // The book has been successfully borrowed
+            return new ApiResult(true, "The book has been successfully borrowed.");
         } catch (SQLException e) {
+            rollback(conn);
             e.printStackTrace();
             return new ApiResult(false, e.getMessage());
+        } finally {
+            connector.releaseConn(conn);
+            lock.unlock();
         }
     }
 
     @Override
-    public ApiResult borrowBook(Borrow borrow) {
-        Connection conn = connector.getConn();
+    public ApiResult borrowBooks(List<Borrow> borrows) {
+        // Refuse unknown cards before locking any book, and borrow for the others
+        boolean[] unknownCard = new boolean[borrows.size()];
+        List<Borrow> known = new ArrayList<>(borrows.size());
+        for (int i = 0; i < borrows.size(); i++) {
+            if (cardMayExist(borrows.get(i).getCardId())) {
+                known.add(borrows.get(i));
+            } else {
+                unknownCard[i] = true;
+            }
+        }
+        List<Lock> locks = bookLocks.lockAll(bookIdsOf(known));
+        Connection conn = null;
         try {
-            // Check if the book exists
-            PreparedStatement bookCheckStmt = conn.prepareStatement(
-                    "SELECT * FROM book WHERE book_id = ?"
-            );
-            bookCheckStmt.setInt(1, borrow.getBookId());
-            ResultSet bookCheckRs = bookCheckStmt.executeQuery();
-            if (!bookCheckRs.next()) {
-                // The book does not exist
-                return new ApiResult(false, "The book does not exist.");
+            conn = connector.getConn();
+            // Handle the items in book_id order, so that concurrent batches lock book rows in the same order
+            List<Integer> order = orderByBookId(borrows);
+            order.removeIf(i -> unknownCard[i]);
+            boolean[] borrowed = new boolean[borrows.size()];
+
+            if (!order.isEmpty() && !borrowInBatches(conn, borrows, order, borrowed)) {
+                // The driver has not told which items succeeded, redo them one by one
+                conn.rollback();
+                Arrays.fill(borrowed, false);
+                borrowOneByOne(conn, borrows, order, borrowed);
+            }
+
+            conn.commit();
+            for (int i = 0; i < borrows.size(); i++) {
+                if (borrowed[i]) {
+                    afterLoanCommit(borrows.get(i), LibraryEvent.Type.BORROW);
+                }
+            }
+
+            // Find out why the other items have been refused
+            List<ApiResult> results = new ArrayList<>();
+            for (int i = 0; i < borrows.size(); i++) {
+                if (borrowed[i]) {
+                    results.add(new ApiResult(true, "The book has been successfully borrowed."));
+                } else if (unknownCard[i]) {
+                    results.add(new ApiResult(false, "The card does not exist."));
+                } else {
+                    results.add(diagnoseBorrowFailure(conn, borrows.get(i)));
+                }
+            }
+            return new ApiResult(true, new BatchResults(results));
+        } catch (SQLException e) {
+            rollback(conn);
+            e.printStackTrace();
+            return new ApiResult(false, e.getMessage());
+        } finally {
+            connector.releaseConn(conn);
+            bookLocks.unlockAll(locks);
+        }
+    }
+
+    /**
+     * borrow the items in three batches, in book_id order.
+     *
+     * @return false if the driver answered SUCCESS_NO_INFO, the outcome of the items is unknown then
+     */
+    private boolean borrowInBatches(Connection conn, List<Borrow> borrows, List<Integer> order, boolean[] borrowed)
+            throws SQLException {
+        // Take one copy of each book off the shelf in one batch
+        PreparedStatement stockStmt = connector.prepare(conn, SQL_TAKE_STOCK);
+        for (int i : order) {
+            stockStmt.setInt(1, borrows.get(i).getBookId());
+            stockStmt.addBatch();
+        }
+        int[] taken = stockStmt.executeBatch();
+        if (!countsKnown(taken)) {
+            return false;
+        }
+
+        // Insert the borrow records of the items that got a copy in one batch
+        List<Integer> inserting = new ArrayList<>();
+        PreparedStatement insertStmt = connector.prepare(conn, SQL_INSERT_BORROW);
+        for (int k = 0; k < order.size(); k++) {
+            if (taken[k] > 0) {
+                bindInsertBorrow(insertStmt, borrows.get(order.get(k)));
+                insertStmt.addBatch();
+                inserting.add(order.get(k));
             }
+        }
+        if (inserting.isEmpty()) {
+            return true;
+        }
+        int[] inserted = insertStmt.executeBatch();
+        if (!countsKnown(inserted)) {
+            return false;
+        }
+        // Put back the copies of the items whose borrow records were refused
+        PreparedStatement giveStmt = connector.prepare(conn, SQL_GIVE_STOCK);
+        boolean giveBack = false;
+        for (int k = 0; k < inserting.size(); k++) {
+            int i = inserting.get(k);
+            if (inserted[k] > 0) {
+                borrowed[i] = true;
+            } else {
+                giveStmt.setInt(1, borrows.get(i).getBookId());
+                giveStmt.addBatch();
+                giveBack = true;
+            }
+        }
+        if (giveBack) {
+            giveStmt.executeBatch();
+        }
+        return true;
+    }
 
-            // Check if the card exists
-            PreparedStatement cardCheckStmt = conn.prepareStatement(
+    /* the slow path of borrowInBatches, every update tells its count */
+    private void borrowOneByOne(Connection conn, List<Borrow> borrows, List<Integer> order, boolean[] borrowed)
+            throws SQLException {
+        PreparedStatement stockStmt = connector.prepare(conn, SQL_TAKE_STOCK);
+        PreparedStatement insertStmt = connector.prepare(conn, SQL_INSERT_BORROW);
+        PreparedStatement giveStmt = connector.prepare(conn, SQL_GIVE_STOCK);
+        for (int i : order) {
+            Borrow borrow = borrows.get(i);
+            stockStmt.setInt(1, borrow.getBookId());
+            if (stockStmt.executeUpdate() == 0) {
+                continue;
+            }
+            bindInsertBorrow(insertStmt, borrow);
+            if (insertStmt.executeUpdate() > 0) {
+                borrowed[i] = true;
+            } else {
+                giveStmt.setInt(1, borrow.getBookId());
+                giveStmt.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * @return false if a count of the batch is SUCCESS_NO_INFO. MySQL answers it for
+     *         rewritten batches (rewriteBatchedStatements=true), and so may other drivers
+     */
+    private static boolean countsKnown(int[] counts) {
+        for (int count : counts) {
+            if (count == Statement.SUCCESS_NO_INFO) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void bindInsertBorrow(PreparedStatement insertStmt, Borrow borrow) throws SQLException {
+        insertStmt.setInt(1, borrow.getBookId());
+        insertStmt.setLong(2, borrow.getBorrowTime());
+        insertStmt.setInt(3, borrow.getCardId());
+        insertStmt.setInt(4, borrow.getCardId());
+        insertStmt.setInt(5, borrow.getBookId());
+    }
+
+    private static List<Integer> bookIdsOf(List<Borrow> borrows) {
+        List<Integer> bookIds = new ArrayList<>(borrows.size());
+        for (Borrow borrow : borrows) {
+            bookIds.add(borrow.getBookId());
+        }
+        return bookIds;
+    }
+
+    /* indexes of borrows sorted by book_id, the sort is stable so duplicated items keep their order */
+    private static List<Integer> orderByBookId(List<Borrow> borrows) {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < borrows.size(); i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparingInt(i -> borrows.get(i).getBookId()));
+        return order;
+    }
+
+    /**
+     * find out why a borrow has been refused. only runs on the failure path,
+     * so the successful borrow costs no extra round trips.
+     */
+    private ApiResult diagnoseBorrowFailure(Connection conn, Borrow borrow) throws SQLException {
+        // Check if the book exists
+        PreparedStatement bookCheckStmt = connector.prepare(conn,
+                "SELECT stock FROM book WHERE book_id = ?"
+        );
+        bookCheckStmt.setInt(1, borrow.getBookId());
+        ResultSet bookCheckRs = bookCheckStmt.executeQuery();
+        if (!bookCheckRs.next()) {
+            // The book does not exist
+            return new ApiResult(false, "The book does not exist.");
+        }
+        int stock = bookCheckRs.getInt("stock");
+
+        // Check if the card exists, cards in the cache need no query
+        if (cardCache == null || cardCache.get(borrow.getCardId()) == null) {
+            PreparedStatement cardCheckStmt = connector.prepare(conn,
                     "SELECT * FROM card WHERE card_id = ?"
             );
             cardCheckStmt.setInt(1, borrow.getCardId());
@@ -352,60 +1050,39 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
                 // The card does not exist
                 return new ApiResult(false, "The card does not exist.");
             }
-
-            // Check if the user has already borrowed the book but not returned it
-            PreparedStatement checkStmt = conn.prepareStatement(
-                    "SELECT * FROM borrow WHERE book_id = ? AND card_id = ? AND return_time = 0"
-            );
-            checkStmt.setInt(1, borrow.getBookId());
-            checkStmt.setInt(2, borrow.getCardId());
-            ResultSet rs = checkStmt.executeQuery();
-            if (rs.next()) {
-                // The user has already borrowed the book but not returned it
-                return new ApiResult(false, "The user has already borrowed the book but not returned it.");
+            if (cardCache != null) {
+                cardCache.put(readCard(cardCheckRs));
             }
+        }
 
-            // Check if the book is in stock
-            PreparedStatement stockStmt = conn.prepareStatement(
-                    "SELECT stock FROM book WHERE book_id = ?"
-            );
-            stockStmt.setInt(1, borrow.getBookId());
-            ResultSet stockRs = stockStmt.executeQuery();
-            if (stockRs.next() && stockRs.getInt("stock") <= 0) {
-                // The book is out of stock
-                return new ApiResult(false, "The book is out of stock.");
-            }
-
-            // Insert the new borrow record
-            PreparedStatement insertStmt = conn.prepareStatement(
-                    "INSERT INTO borrow (book_id, card_id, borrow_time) VALUES (?, ?, ?)",
-                    Statement.RETURN_GENERATED_KEYS
-            );
-            insertStmt.setInt(1, borrow.getBookId());
-            insertStmt.setInt(2, borrow.getCardId());
-            insertStmt.setLong(3, borrow.getBorrowTime());
-            insertStmt.executeUpdate();
-
-            // Update the stock of the book
-            PreparedStatement updateStmt = conn.prepareStatement(
-                    "UPDATE book SET stock = stock - 1 WHERE book_id = ?"
-            );
-            updateStmt.setInt(1, borrow.getBookId());
-            updateStmt.executeUpdate();
+        // Check if the user has already borrowed the book but not returned it
+        PreparedStatement checkStmt = connector.prepare(conn,
+                "SELECT * FROM borrow WHERE book_id = ? AND card_id = ? AND return_time = 0"
+        );
+        checkStmt.setInt(1, borrow.getBookId());
+        checkStmt.setInt(2, borrow.getCardId());
+        ResultSet rs = checkStmt.executeQuery();
+        if (rs.next()) {
+            // The user has already borrowed the book but not returned it
+            return new ApiResult(false, "The user has already borrowed the book but not returned it.");
+        }
 
-            // The book has been successfully borrowed
-            return new ApiResult(true, "The book has been successfully borrowed.");
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return new ApiResult(false, e.getMessage());
+        // Otherwise the last copy has been taken by someone else
+        if (stock > 0) {
+            return new ApiResult(false, "The book has just been borrowed by others, please retry.");
         }
+        return new ApiResult(false, "The book is out of stock.");
     }
+
     @Override
     public ApiResult returnBook(Borrow borrow) {
-        Connection conn = connector.getConn();
+        Lock lock = bookLocks.get(borrow.getBookId());
+        lock.lock();
+        Connection conn = null;
         try {
+            conn = connector.getConn();
             // Check if the borrow record exists and the book has not been returned yet
-            PreparedStatement checkStmt = conn.prepareStatement(
+            PreparedStatement checkStmt = connector.prepare(conn,
                     "SELECT * FROM borrow WHERE book_id = ? AND card_id = ? AND return_time = 0"
             );
             checkStmt.setInt(1, borrow.getBookId());
@@ -424,7 +1101,7 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             }
 
             // Update the return time of the borrow record
-            PreparedStatement updateStmt = conn.prepareStatement(
+            PreparedStatement updateStmt = connector.prepare(conn,
                     "UPDATE borrow SET return_time = ? WHERE book_id = ? AND card_id = ? AND return_time = 0"
             );
             updateStmt.setLong(1, borrow.getReturnTime());
@@ -433,28 +1110,208 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             updateStmt.executeUpdate();
 
             // Update the stock of the book
-            PreparedStatement stockStmt = conn.prepareStatement(
+            PreparedStatement stockStmt = connector.prepare(conn,
                     "UPDATE book SET stock = stock + 1 WHERE book_id = ?"
             );
             stockStmt.setInt(1, borrow.getBookId());
             stockStmt.executeUpdate();
 
+            conn.commit();
+            afterLoanCommit(borrow, LibraryEvent.Type.RETURN);
+
             // The book has been successfully returned
             return new ApiResult(true, "The book has been successfully returned.");
         } catch (SQLException e) {
+            rollback(conn);
             e.printStackTrace();
             return new ApiResult(false, e.getMessage());
+        } finally {
+            connector.releaseConn(conn);
+            lock.unlock();
         }
     }
+    @Override
+    public ApiResult returnBooks(List<Borrow> borrows) {
+        List<Lock> locks = bookLocks.lockAll(bookIdsOf(borrows));
+        Connection conn = null;
+        try {
+            conn = connector.getConn();
+            // Handle the items in book_id order, so that concurrent batches lock book rows in the same order
+            List<Integer> order = orderByBookId(borrows);
+            boolean[] returned = new boolean[borrows.size()];
+
+            if (!returnInBatches(conn, borrows, order, returned)) {
+                // The driver has not told which items succeeded, redo them one by one
+                conn.rollback();
+                Arrays.fill(returned, false);
+                returnOneByOne(conn, borrows, order, returned);
+            }
+
+            conn.commit();
+            for (int i = 0; i < borrows.size(); i++) {
+                if (returned[i]) {
+                    afterLoanCommit(borrows.get(i), LibraryEvent.Type.RETURN);
+                }
+            }
+
+            // Find out why the other items have been refused
+            List<ApiResult> results = new ArrayList<>();
+            for (int i = 0; i < borrows.size(); i++) {
+                if (returned[i]) {
+                    results.add(new ApiResult(true, "The book has been successfully returned."));
+                } else {
+                    results.add(diagnoseReturnFailure(conn, borrows.get(i)));
+                }
+            }
+            return new ApiResult(true, new BatchResults(results));
+        } catch (SQLException e) {
+            rollback(conn);
+            e.printStackTrace();
+            return new ApiResult(false, e.getMessage());
+        } finally {
+            connector.releaseConn(conn);
+            bookLocks.unlockAll(locks);
+        }
+    }
+
+    /**
+     * return the items in two batches, in book_id order.
+     *
+     * @return false if the driver answered SUCCESS_NO_INFO, the outcome of the items is unknown then
+     */
+    private boolean returnInBatches(Connection conn, List<Borrow> borrows, List<Integer> order, boolean[] returned)
+            throws SQLException {
+        // Close the borrow records in one batch
+        PreparedStatement closeStmt = connector.prepare(conn, SQL_CLOSE_BORROW);
+        for (int i : order) {
+            bindCloseBorrow(closeStmt, borrows.get(i));
+            closeStmt.addBatch();
+        }
+        int[] closed = closeStmt.executeBatch();
+        if (!countsKnown(closed)) {
+            return false;
+        }
+
+        // Put the returned copies back on the shelf in one batch
+        PreparedStatement giveStmt = connector.prepare(conn, SQL_GIVE_STOCK);
+        boolean giveBack = false;
+        for (int k = 0; k < order.size(); k++) {
+            if (closed[k] > 0) {
+                int i = order.get(k);
+                returned[i] = true;
+                giveStmt.setInt(1, borrows.get(i).getBookId());
+                giveStmt.addBatch();
+                giveBack = true;
+            }
+        }
+        if (giveBack) {
+            giveStmt.executeBatch();
+        }
+        return true;
+    }
+
+    /* the slow path of returnInBatches, every update tells its count */
+    private void returnOneByOne(Connection conn, List<Borrow> borrows, List<Integer> order, boolean[] returned)
+            throws SQLException {
+        PreparedStatement closeStmt = connector.prepare(conn, SQL_CLOSE_BORROW);
+        PreparedStatement giveStmt = connector.prepare(conn, SQL_GIVE_STOCK);
+        for (int i : order) {
+            Borrow borrow = borrows.get(i);
+            bindCloseBorrow(closeStmt, borrow);
+            if (closeStmt.executeUpdate() > 0) {
+                returned[i] = true;
+                giveStmt.setInt(1, borrow.getBookId());
+                giveStmt.executeUpdate();
+            }
+        }
+    }
+
+    private void bindCloseBorrow(PreparedStatement closeStmt, Borrow borrow) throws SQLException {
+        closeStmt.setLong(1, borrow.getReturnTime());
+        closeStmt.setInt(2, borrow.getCardId());
+        closeStmt.setInt(3, borrow.getBookId());
+        closeStmt.setLong(4, borrow.getReturnTime());
+    }
+
+    /**
+     * find out why a return has been refused, only runs on the failure path.
+     */
+    private ApiResult diagnoseReturnFailure(Connection conn, Borrow borrow) throws SQLException {
+        // Check if the borrow record exists and the book has not been returned yet
+        PreparedStatement checkStmt = connector.prepare(conn,
+                "SELECT * FROM borrow WHERE book_id = ? AND card_id = ? AND return_time = 0"
+        );
+        checkStmt.setInt(1, borrow.getBookId());
+        checkStmt.setInt(2, borrow.getCardId());
+        ResultSet rs = checkStmt.executeQuery();
+        if (!rs.next()) {
+            // The borrow record does not exist or the book has already been returned
+            return new ApiResult(false, "The borrow record does not exist or the book has already been returned.");
+        }
+        // Otherwise return_time is not greater than borrow_time
+        return new ApiResult(false, "Return time must be greater than borrow time.");
+    }
+
     @Override
     public ApiResult showBorrowHistory(int cardId) {
-        Connection conn = connector.getConn();
+        return showBorrowHistory(new BorrowHistoryConditions(cardId));
+    }
+
+    @Override
+    public ApiResult showBorrowHistory(BorrowHistoryConditions conditions) {
+        Integer pageSize = conditions.getPageSize();
+        if (pageSize != null && pageSize <= 0) {
+            return new ApiResult(false, "Page size must be positive.");
+        }
+        if (pageSize != null) {
+            // A larger page goes on in the next page, and pageSize + 1 can not overflow
+            pageSize = Math.min(pageSize, MAX_PAGE_SIZE);
+        }
+        BorrowPageToken token = null;
+        if (conditions.getPageToken() != null) {
+            try {
+                token = BorrowPageToken.decode(conditions.getPageToken());
+            } catch (IllegalArgumentException e) {
+                return new ApiResult(false, "Invalid page token: " + e.getMessage());
+            }
+        }
+        Connection conn = null;
         try {
-            // Prepare the SQL statement
-            PreparedStatement stmt = conn.prepareStatement(
-                    "SELECT * FROM borrow WHERE card_id = ? ORDER BY borrow_time DESC, book_id ASC"
-            );
-            stmt.setInt(1, cardId);
+            conn = connector.getConn();
+            // Fetch the borrow records together with their books in one round trip,
+            // or only the borrow records if the book cache has been enabled
+            StringBuilder query = new StringBuilder(bookCache == null
+                    ? "SELECT b.book_id, b.category, b.title, b.press, b.publish_year, b.author, b.price, " +
+                            "r.borrow_time, r.return_time " +
+                            "FROM borrow r JOIN book b ON b.book_id = r.book_id WHERE r.card_id = ?"
+                    : "SELECT r.book_id, r.borrow_time, r.return_time FROM borrow r WHERE r.card_id = ?");
+            if (conditions.getMinBorrowTime() != null) {
+                query.append(" AND r.borrow_time >= ?");
+            }
+            if (conditions.getMaxBorrowTime() != null) {
+                query.append(" AND r.borrow_time <= ?");
+            }
+            // Continue right after the last record of the previous page
+            if (token != null) {
+                query.append(" AND (r.borrow_time < ? OR (r.borrow_time = ? AND r.book_id > ?))");
+            }
+            query.append(" ORDER BY r.borrow_time DESC, r.book_id ASC");
+            PreparedStatement stmt = connector.prepare(conn, query.toString());
+            int index = 1;
+            stmt.setInt(index++, conditions.getCardId());
+            if (conditions.getMinBorrowTime() != null) {
+                stmt.setLong(index++, conditions.getMinBorrowTime());
+            }
+            if (conditions.getMaxBorrowTime() != null) {
+                stmt.setLong(index++, conditions.getMaxBorrowTime());
+            }
+            if (token != null) {
+                stmt.setLong(index++, token.getBorrowTime());
+                stmt.setLong(index++, token.getBorrowTime());
+                stmt.setInt(index, token.getBookId());
+            }
+            // Fetch one more row to find out whether there is a next page
+            stmt.setMaxRows(pageSize == null ? 0 : pageSize + 1);
 
             // Execute the query
             ResultSet rs = stmt.executeQuery();
@@ -462,52 +1319,131 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             // Collect the borrow records
             List<BorrowHistories.Item> items = new ArrayList<>();
             while (rs.next()) {
-                // Get the book details
-                PreparedStatement bookStmt = conn.prepareStatement(
-                        "SELECT * FROM book WHERE book_id = ?"
-                );
-                bookStmt.setInt(1, rs.getInt("book_id"));
-                ResultSet bookRs = bookStmt.executeQuery();
-                if (!bookRs.next()) {
-                    // The book does not exist
-                    return new ApiResult(false, "The book does not exist.");
+                BorrowHistories.Item item = new BorrowHistories.Item();
+                item.setCardId(conditions.getCardId());
+                item.setBookId(rs.getInt("book_id"));
+                if (bookCache == null) {
+                    item.setCategory(rs.getString("category"));
+                    item.setTitle(rs.getString("title"));
+                    item.setPress(rs.getString("press"));
+                    item.setPublishYear(rs.getInt("publish_year"));
+                    item.setAuthor(rs.getString("author"));
+                    item.setPrice(rs.getDouble("price"));
                 }
-                Book book = new Book();
-                book.setBookId(bookRs.getInt("book_id"));
-                book.setCategory(bookRs.getString("category"));
-                book.setTitle(bookRs.getString("title"));
-                book.setPress(bookRs.getString("press"));
-                book.setPublishYear(bookRs.getInt("publish_year"));
-                book.setAuthor(bookRs.getString("author"));
-                book.setPrice(bookRs.getDouble("price"));
-                book.setStock(bookRs.getInt("stock"));
-
-                // Create a new BorrowHistories.Item object
-                Borrow borrow = new Borrow();
-                borrow.setBookId(rs.getInt("book_id"));
-                borrow.setCardId(rs.getInt("card_id"));
-                borrow.setBorrowTime(rs.getLong("borrow_time"));
-                borrow.setReturnTime(rs.getLong("return_time"));
-                BorrowHistories.Item item = new BorrowHistories.Item(cardId, book, borrow);
+                item.setBorrowTime(rs.getLong("borrow_time"));
+                item.setReturnTime(rs.getLong("return_time"));
                 items.add(item);
             }
 
+            // Cut off the extra row, the last record of this page starts the next one
+            String nextPageToken = null;
+            if (pageSize != null && items.size() > pageSize) {
+                items = new ArrayList<>(items.subList(0, pageSize));
+                nextPageToken = BorrowPageToken.after(items.get(pageSize - 1)).encode();
+            }
+            if (bookCache != null) {
+                fillBookInfo(conn, items);
+            }
+
             // Create a new BorrowHistories object
-            BorrowHistories histories = new BorrowHistories(items);
+            BorrowHistories histories = new BorrowHistories(items, nextPageToken);
 
             // Return the BorrowHistories object as the payload of the ApiResult
             return new ApiResult(true, histories);
         } catch (SQLException e) {
+            rollback(conn);
             e.printStackTrace();
             return new ApiResult(false, e.getMessage());
+        } finally {
+            connector.releaseConn(conn);
+        }
+    }
+
+    /*
+     * set the book info of borrow records from the cache, the missing books are read in a few IN lists.
+     * records of books removed in between are dropped.
+     */
+    private void fillBookInfo(Connection conn, List<BorrowHistories.Item> items) throws SQLException {
+        long generation = bookCache.generation();
+        Map<Integer, Book> books = new HashMap<>();
+        List<Integer> missing = new ArrayList<>();
+        for (BorrowHistories.Item item : items) {
+            int bookId = item.getBookId();
+            if (!books.containsKey(bookId)) {
+                Book book = bookCache.get(bookId);
+                if (book == null) {
+                    missing.add(bookId);
+                }
+                books.put(bookId, book);
+            }
+        }
+        for (int from = 0; from < missing.size(); from += ID_LOOKUP_SIZE) {
+            List<Integer> ids = missing.subList(from, Math.min(from + ID_LOOKUP_SIZE, missing.size()));
+            // Round the list up to a power of two, so that few distinct statements get cached
+            int slots = 1;
+            while (slots < ids.size()) {
+                slots <<= 1;
+            }
+            StringBuilder query = new StringBuilder(
+                    "SELECT * FROM book WHERE book_id IN (?");
+            for (int i = 1; i < slots; i++) {
+                query.append(", ?");
+            }
+            query.append(')');
+            PreparedStatement stmt = connector.prepare(conn, query.toString());
+            for (int i = 0; i < slots; i++) {
+                stmt.setInt(i + 1, ids.get(Math.min(i, ids.size() - 1)));
+            }
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                Book book = readBook(rs);
+                books.put(book.getBookId(), book);
+                bookCache.put(book, generation);
+            }
+        }
+        for (Iterator<BorrowHistories.Item> it = items.iterator(); it.hasNext(); ) {
+            BorrowHistories.Item item = it.next();
+            Book book = books.get(item.getBookId());
+            if (book == null) {
+                // The book has been removed since the borrow records were read, and its records
+                // with it (on delete cascade), leave them out as a later read would
+                it.remove();
+                continue;
+            }
+            item.setCategory(book.getCategory());
+            item.setTitle(book.getTitle());
+            item.setPress(book.getPress());
+            item.setPublishYear(book.getPublishYear());
+            item.setAuthor(book.getAuthor());
+            item.setPrice(book.getPrice());
         }
     }
+
+    @Override
+    public TableVersions getTableVersions() {
+        return tableVersions;
+    }
+
+    @Override
+    public EventBus getEventBus() {
+        return eventBus;
+    }
+
+    /**
+     * @return the book info cache, to watch its hit rate. null if disabled
+     */
+    public BookCache getBookCache() {
+        return bookCache;
+    }
+
     @Override
     public ApiResult registerCard(Card card) {
-        Connection conn = connector.getConn();
+        Connection conn = null;
+        Integer registering = null;
         try {
+            conn = connector.getConn();
             // Check if the card already exists
-            PreparedStatement checkStmt = conn.prepareStatement(
+            PreparedStatement checkStmt = connector.prepare(conn,
                     "SELECT * FROM card WHERE name = ? AND department = ? AND type = ?"
             );
             checkStmt.setString(1, card.getName());
@@ -520,7 +1456,7 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             }
 
             // Insert the new card
-            PreparedStatement insertStmt = conn.prepareStatement(
+            PreparedStatement insertStmt = connector.prepare(conn,
                     "INSERT INTO card (name, department, type) VALUES (?, ?, ?)",
                     Statement.RETURN_GENERATED_KEYS
             );
@@ -535,20 +1471,38 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
                 card.setCardId(generatedKeys.getInt(1));
             }
 
+            // Let the cache know the card before it becomes visible, so it is never refused
+            if (cardCache != null) {
+                registering = card.getCardId();
+                cardCache.register(registering);
+            }
+            conn.commit();
+            if (cardCache != null) {
+                cardCache.put(card);
+            }
+            tableVersions.changed(TableVersions.Table.CARD);
+
             // The card has been successfully registered
             return new ApiResult(true, "The card has been successfully registered.");
         } catch (SQLException e) {
+            rollback(conn);
             e.printStackTrace();
             return new ApiResult(false, e.getMessage());
+        } finally {
+            if (registering != null) {
+                cardCache.registered(registering);
+            }
+            connector.releaseConn(conn);
         }
     }
 
     @Override
     public ApiResult removeCard(int cardId) {
-        Connection conn = connector.getConn();
+        Connection conn = null;
         try {
+            conn = connector.getConn();
             // Check if the card is currently used to borrow a book
-            PreparedStatement checkStmt = conn.prepareStatement(
+            PreparedStatement checkStmt = connector.prepare(conn,
                     "SELECT * FROM borrow WHERE card_id = ? AND return_time = 0"
             );
             checkStmt.setInt(1, cardId);
@@ -559,7 +1513,7 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             }
 
             // Delete the card from the database
-            PreparedStatement deleteStmt = conn.prepareStatement(
+            PreparedStatement deleteStmt = connector.prepare(conn,
                     "DELETE FROM card WHERE card_id = ?"
             );
             deleteStmt.setInt(1, cardId);
@@ -570,20 +1524,32 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
                 return new ApiResult(false, "The card does not exist.");
             }
 
+            conn.commit();
+            if (cardCache != null) {
+                cardCache.remove(cardId);
+            }
+            // Its borrow records are gone with it
+            tableVersions.changed(TableVersions.Table.CARD);
+            tableVersions.changed(TableVersions.Table.BORROW);
+
             // The card has been successfully removed
             return new ApiResult(true, "The card has been successfully removed.");
         } catch (SQLException e) {
+            rollback(conn);
             e.printStackTrace();
             return new ApiResult(false, e.getMessage());
+        } finally {
+            connector.releaseConn(conn);
         }
     }
 
     @Override
     public ApiResult showCards() {
-        Connection conn = connector.getConn();
+        Connection conn = null;
         try {
+            conn = connector.getConn();
             // Prepare the SQL statement
-            PreparedStatement stmt = conn.prepareStatement(
+            PreparedStatement stmt = connector.prepare(conn,
                     "SELECT * FROM card ORDER BY card_id ASC"
             );
 
@@ -607,33 +1573,100 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             // Return the CardList object as the payload of the ApiResult
             return new ApiResult(true, cardList);
         } catch (SQLException e) {
+            rollback(conn);
             e.printStackTrace();
             return new ApiResult(false, e.getMessage());
+        } finally {
+            connector.releaseConn(conn);
         }
     }
 
     @Override
     public ApiResult resetDatabase() {
-        Connection conn = connector.getConn();
+        if (coalescer != null) {
+            // Waiting borrows belong to the tables about to be dropped
+            coalescer.close();
+        }
+        Connection conn = null;
         try {
-            Statement stmt = conn.createStatement();
-            DBInitializer initializer = connector.getConf().getType().getDbInitializer();
-            stmt.addBatch(initializer.sqlDropBorrow());
-            stmt.addBatch(initializer.sqlDropBook());
-            stmt.addBatch(initializer.sqlDropCard());
-            stmt.addBatch(initializer.sqlCreateCard());
-            stmt.addBatch(initializer.sqlCreateBook());
-            stmt.addBatch(initializer.sqlCreateBorrow());
-            stmt.executeBatch();
+            conn = connector.getConn();
+            try (Statement stmt = conn.createStatement()) {
+                DBInitializer initializer = connector.getConf().getType().getDbInitializer();
+                stmt.addBatch(initializer.sqlDropBorrow());
+                stmt.addBatch(initializer.sqlDropBook());
+                stmt.addBatch(initializer.sqlDropCard());
+                stmt.addBatch(initializer.sqlCreateCard());
+                stmt.addBatch(initializer.sqlCreateBook());
+                stmt.addBatch(initializer.sqlCreateBorrow());
+                stmt.addBatch(initializer.sqlCreateBorrowBookIndex());
+                stmt.addBatch(initializer.sqlCreateBorrowCardIndex());
+                stmt.addBatch(initializer.sqlCreateBorrowTimeIndex());
+                stmt.executeBatch();
+            }
             commit(conn);
+            if (queryCache != null) {
+                queryCache.clear();
+            }
+            if (textIndex != null) {
+                textIndex.clear();
+                textIndex.setReady(true);
+            }
+            if (cardCache != null) {
+                cardCache.clear();
+                cardCache.fill(CardCache.newFilter(0));
+            }
+            if (bookCache != null) {
+                bookCache.clear();
+            }
+            tableVersions.changedAll();
         } catch (Exception e) {
             rollback(conn);
             return new ApiResult(false, e.getMessage());
+        } finally {
+            connector.releaseConn(conn);
         }
         return new ApiResult(true, null);
     }
 
+    /* drop cached query results that may contain the stored or modified book */
+    private void invalidateBook(Book book) {
+        if (queryCache != null) {
+            queryCache.invalidate(book);
+        }
+        if (bookCache != null) {
+            bookCache.invalidate(book.getBookId());
+        }
+        tableVersions.changed(TableVersions.Table.BOOK);
+    }
+
+    private void invalidateBook(int bookId) {
+        if (queryCache != null) {
+            queryCache.invalidate(bookId);
+        }
+        if (bookCache != null) {
+            bookCache.invalidate(bookId);
+        }
+        tableVersions.changed(TableVersions.Table.BOOK);
+    }
+
+    private void invalidateStock(int bookId) {
+        if (queryCache != null) {
+            queryCache.invalidateStock(bookId);
+        }
+        tableVersions.changed(TableVersions.Table.BOOK);
+    }
+
+    /* a copy of the book has been borrowed or returned */
+    private void afterLoanCommit(Borrow borrow, LibraryEvent.Type type) {
+        invalidateStock(borrow.getBookId());
+        tableVersions.changed(TableVersions.Table.BORROW);
+        eventBus.publish(type, borrow.getBookId(), borrow.getCardId(), type == LibraryEvent.Type.BORROW ? -1 : 1);
+    }
+
     private void rollback(Connection conn) {
+        if (conn == null) {
+            return;
+        }
         try {
             conn.rollback();
         } catch (Exception e) {
@@ -1,6 +1,8 @@
 import utils.ConnectConfig;
 import queries.*;
 import utils.DatabaseConnector;
+
+import java.nio.file.Paths;
 import java.util.Scanner;
 import java.util.logging.Logger;
 
@@ -21,8 +23,28 @@ public class Main {
                 System.exit(1);
             }
 
-            // Create an instance of LibraryManagementSystemImpl
-            LibraryManagementSystemImpl libraryManagementSystem = new LibraryManagementSystemImpl(connector);
+            // Create an instance of LibraryManagementSystem, "type: memory" needs no database
+            LibraryManagementSystem libraryManagementSystem = conf.getType().isInMemory()
+                    ? new InMemoryLibraryManagementSystemImpl(conf.getLockStripes())
+                    : new LibraryManagementSystemImpl(connector);
+
+            // Serve the library to the frontend
+            HttpApiServer httpServer = null;
+            if (conf.getHttpPort() > 0) {
+                httpServer = new HttpApiServer(libraryManagementSystem, conf.getHttpBind(), conf.getHttpPort(),
+                        conf.getPoolMaxSize(), conf.getHttpQueueSize(),
+                        conf.getSseMaxClients(), conf.getSseBufferSize());
+                httpServer.setCorsOrigin(conf.getHttpCorsOrigin());
+                httpServer.setResetEnabled(conf.isHttpReset());
+                httpServer.start();
+            }
+            // Serve borrows & returns to the self-checkout kiosks
+            KioskRpcServer rpcServer = null;
+            if (conf.getRpcPort() > 0) {
+                rpcServer = new KioskRpcServer(libraryManagementSystem, conf.getRpcBind(), conf.getRpcPort(),
+                        conf.getPoolMaxSize(), conf.getRpcQueueSize(), conf.getRpcMaxInFlight());
+                rpcServer.start();
+            }
 
             // Create a Scanner to read user input
             Scanner scanner = new Scanner(System.in);
@@ -39,6 +61,17 @@ public class Main {
                 } else if (command.equals("resetDatabase")) {
                     ApiResult result = libraryManagementSystem.resetDatabase();
                     System.out.println(result);
+                } else if (command.startsWith("importCatalog ")) {
+                    // importCatalog <file>, a CSV file with a header, or a TSV file if it ends with .tsv
+                    String file = command.substring("importCatalog ".length()).trim();
+                    CatalogImporter importer = new CatalogImporter(libraryManagementSystem,
+                            conf.getBatchSize(), Math.max(1, conf.getPoolMaxSize() / 2), 4);
+                    ApiResult result = importer.importFile(Paths.get(file),
+                            file.endsWith(".tsv") ? '\t' : ',', true);
+                    System.out.println(result.payload);
+                    if (!result.ok) {
+                        System.out.println(result.message);
+                    }
                 } else if (command.equals("exit")) {
                     break;
                 } else {
@@ -46,6 +79,13 @@ public class Main {
                 }
             }
 
+            if (httpServer != null) {
+                httpServer.stop(1);
+            }
+            if (rpcServer != null) {
+                rpcServer.stop();
+            }
+
             // release database connection handler
             if (connector.release()) {
                 log.info("Success to release connection.");
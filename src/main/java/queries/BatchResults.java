@@ -0,0 +1,40 @@
+package queries;
+
+import java.util.List;
+
+public class BatchResults {
+
+    private int count;          /* number of items, equal to results.size() */
+    private int successCount;   /* number of items that have been successfully completed */
+    private List<ApiResult> results;    /* outcome of each item, in the same order as the request */
+
+    public BatchResults(List<ApiResult> results) {
+        this.count = results.size();
+        this.successCount = (int) results.stream().filter(r -> r.ok).count();
+        this.results = results;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public int getSuccessCount() {
+        return successCount;
+    }
+
+    public void setSuccessCount(int successCount) {
+        this.successCount = successCount;
+    }
+
+    public List<ApiResult> getResults() {
+        return results;
+    }
+
+    public void setResults(List<ApiResult> results) {
+        this.results = results;
+    }
+}
@@ -0,0 +1,153 @@
+package queries;
+
+import entities.Book;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Continuation token of a paged book query: the sort key & book_id of the
+ * last book on the previous page. the next page starts right after it, so
+ * it can be read by an index range scan instead of skipping rows by OFFSET.
+ *
+ * Note: the token also records the sort column & order, a token is only
+ * valid for queries sorted the same way.
+ */
+public final class BookPageToken {
+
+    private final Book.SortColumn sortBy;
+    private final SortOrder sortOrder;
+    private final int bookId;
+    /* Integer, Double or String depending on sortBy, null for BOOK_ID */
+    private final Object key;
+
+    private BookPageToken(Book.SortColumn sortBy, SortOrder sortOrder, int bookId, Object key) {
+        this.sortBy = sortBy;
+        this.sortOrder = sortOrder;
+        this.bookId = bookId;
+        this.key = key;
+    }
+
+    /**
+     * the token of the page that follows the given book.
+     */
+    public static BookPageToken after(Book last, BookQueryConditions conditions) {
+        Object key;
+        switch (conditions.getSortBy()) {
+            case CATEGORY:
+                key = last.getCategory();
+                break;
+            case TITLE:
+                key = last.getTitle();
+                break;
+            case PRESS:
+                key = last.getPress();
+                break;
+            case AUTHOR:
+                key = last.getAuthor();
+                break;
+            case PUBLISH_YEAR:
+                key = last.getPublishYear();
+                break;
+            case STOCK:
+                key = last.getStock();
+                break;
+            case PRICE:
+                key = last.getPrice();
+                break;
+            default:
+                key = null;
+        }
+        return new BookPageToken(conditions.getSortBy(), conditions.getSortOrder(), last.getBookId(), key);
+    }
+
+    public String encode() {
+        String raw = sortBy.name() + "|" + sortOrder.name() + "|" + bookId + "|" + (key == null ? "" : key);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the token is malformed or does
+     *         not belong to queries sorted like the given conditions
+     */
+    public static BookPageToken decode(String token, BookQueryConditions conditions) throws IllegalArgumentException {
+        String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        String[] parts = raw.split("\\|", 4);
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Invalid page token.");
+        }
+        Book.SortColumn sortBy = Book.SortColumn.valueOf(parts[0]);
+        SortOrder sortOrder = SortOrder.valueOf(parts[1]);
+        if (sortBy != conditions.getSortBy() || sortOrder != conditions.getSortOrder()) {
+            throw new IllegalArgumentException("The page token belongs to a query with another sort order.");
+        }
+        int bookId = Integer.parseInt(parts[2]);
+        Object key;
+        switch (sortBy) {
+            case PUBLISH_YEAR:
+            case STOCK:
+                key = Integer.parseInt(parts[3]);
+                break;
+            case PRICE:
+                key = Double.parseDouble(parts[3]);
+                break;
+            case BOOK_ID:
+                key = null;
+                break;
+            default:
+                key = parts[3];
+        }
+        return new BookPageToken(sortBy, sortOrder, bookId, key);
+    }
+
+    /**
+     * a book that carries the sort key & book_id of this token, so that it
+     * can be compared with {@link Book.SortColumn#getComparator()}.
+     */
+    public Book toAnchor() {
+        Book anchor = new Book("", "", "", 0, "", 0, 0);
+        anchor.setBookId(bookId);
+        switch (sortBy) {
+            case CATEGORY:
+                anchor.setCategory((String) key);
+                break;
+            case TITLE:
+                anchor.setTitle((String) key);
+                break;
+            case PRESS:
+                anchor.setPress((String) key);
+                break;
+            case AUTHOR:
+                anchor.setAuthor((String) key);
+                break;
+            case PUBLISH_YEAR:
+                anchor.setPublishYear((Integer) key);
+                break;
+            case STOCK:
+                anchor.setStock((Integer) key);
+                break;
+            case PRICE:
+                anchor.setPrice((Double) key);
+                break;
+            default:
+                break;
+        }
+        return anchor;
+    }
+
+    public Book.SortColumn getSortBy() {
+        return sortBy;
+    }
+
+    public SortOrder getSortOrder() {
+        return sortOrder;
+    }
+
+    public int getBookId() {
+        return bookId;
+    }
+
+    public Object getKey() {
+        return key;
+    }
+}
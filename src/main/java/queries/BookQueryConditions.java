@@ -28,6 +28,10 @@ public class BookQueryConditions {
     private Book.SortColumn sortBy;
     /* default sort by PK */
     private SortOrder sortOrder;
+    /* max number of books in one page, null means no limit */
+    private Integer pageSize;
+    /* BookQueryResults.nextPageToken of the previous page, null for the first page */
+    private String pageToken;
 
     public BookQueryConditions() {
         this.category = null;
@@ -40,6 +44,52 @@ public class BookQueryConditions {
         this.maxPrice = null;
         sortBy = Book.SortColumn.BOOK_ID;
         sortOrder = SortOrder.ASC;
+        pageSize = null;
+        pageToken = null;
+    }
+
+    @Override
+    public BookQueryConditions clone() {
+        BookQueryConditions c = new BookQueryConditions();
+        c.category = category;
+        c.title = title;
+        c.press = press;
+        c.minPublishYear = minPublishYear;
+        c.maxPublishYear = maxPublishYear;
+        c.author = author;
+        c.minPrice = minPrice;
+        c.maxPrice = maxPrice;
+        c.sortBy = sortBy;
+        c.sortOrder = sortOrder;
+        c.pageSize = pageSize;
+        c.pageToken = pageToken;
+        return c;
+    }
+
+    /* all conditions in a fixed order, equal conditions give equal keys */
+    @Override
+    public String toString() {
+        return "BookQueryConditions {" + "category=" + quote(category) +
+                ", title=" + quote(title) +
+                ", press=" + quote(press) +
+                ", minPublishYear=" + minPublishYear +
+                ", maxPublishYear=" + maxPublishYear +
+                ", author=" + quote(author) +
+                ", minPrice=" + minPrice +
+                ", maxPrice=" + maxPrice +
+                ", sortBy=" + sortBy +
+                ", sortOrder=" + sortOrder +
+                ", pageSize=" + pageSize +
+                ", pageToken=" + quote(pageToken) +
+                '}';
+    }
+
+    /* strings are quoted & escaped, so that null and "null" differ */
+    private static String quote(String s) {
+        if (s == null) {
+            return "null";
+        }
+        return '\'' + s.replace("\\", "\\\\").replace("'", "\\'") + '\'';
     }
 
     public String getCategory() {
@@ -121,4 +171,20 @@ public class BookQueryConditions {
     public void setSortOrder(SortOrder sortOrder) {
         this.sortOrder = sortOrder;
     }
+
+    public Integer getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(Integer pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public String getPageToken() {
+        return pageToken;
+    }
+
+    public void setPageToken(String pageToken) {
+        this.pageToken = pageToken;
+    }
 }
@@ -133,12 +133,18 @@ public class BorrowHistories {
 
     private int count;
     private List<Item> items;
+    private String nextPageToken;   /* token of the next page, null if this is the last page */
 
     public BorrowHistories(List<Item> items) {
         this.count = items.size();
         this.items = items;
     }
 
+    public BorrowHistories(List<Item> items, String nextPageToken) {
+        this(items);
+        this.nextPageToken = nextPageToken;
+    }
+
     public int getCount() {
         return count;
     }
@@ -154,4 +160,12 @@ public class BorrowHistories {
     public void setItems(List<Item> items) {
         this.items = items;
     }
+
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    public void setNextPageToken(String nextPageToken) {
+        this.nextPageToken = nextPageToken;
+    }
 }
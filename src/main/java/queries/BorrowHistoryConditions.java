@@ -0,0 +1,67 @@
+package queries;
+
+/**
+ * Note: (1) the borrow_time range uses closed intervals, a null
+ *       bound means no limit on that side.
+ *       (2) the records are sorted by borrow_time DESC, book_id ASC,
+ *       pageToken continues right after the last record of the
+ *       previous page.
+ * */
+public class BorrowHistoryConditions {
+    /* show which card's borrow history */
+    private int cardId;
+    private Long minBorrowTime;
+    private Long maxBorrowTime;
+    /* max number of records in one page, null means no limit */
+    private Integer pageSize;
+    /* BorrowHistories.nextPageToken of the previous page, null for the first page */
+    private String pageToken;
+
+    public BorrowHistoryConditions(int cardId) {
+        this.cardId = cardId;
+        this.minBorrowTime = null;
+        this.maxBorrowTime = null;
+        this.pageSize = null;
+        this.pageToken = null;
+    }
+
+    public int getCardId() {
+        return cardId;
+    }
+
+    public void setCardId(int cardId) {
+        this.cardId = cardId;
+    }
+
+    public Long getMinBorrowTime() {
+        return minBorrowTime;
+    }
+
+    public void setMinBorrowTime(Long minBorrowTime) {
+        this.minBorrowTime = minBorrowTime;
+    }
+
+    public Long getMaxBorrowTime() {
+        return maxBorrowTime;
+    }
+
+    public void setMaxBorrowTime(Long maxBorrowTime) {
+        this.maxBorrowTime = maxBorrowTime;
+    }
+
+    public Integer getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(Integer pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public String getPageToken() {
+        return pageToken;
+    }
+
+    public void setPageToken(String pageToken) {
+        this.pageToken = pageToken;
+    }
+}
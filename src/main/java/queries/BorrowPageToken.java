@@ -0,0 +1,62 @@
+package queries;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Continuation token of a paged borrow history: the borrow_time & book_id
+ * of the last record on the previous page. a card borrows a book at most
+ * once at the same time, so the pair identifies the record.
+ */
+public final class BorrowPageToken {
+
+    private final long borrowTime;
+    private final int bookId;
+
+    public BorrowPageToken(long borrowTime, int bookId) {
+        this.borrowTime = borrowTime;
+        this.bookId = bookId;
+    }
+
+    /**
+     * the token of the page that follows the given record.
+     */
+    public static BorrowPageToken after(BorrowHistories.Item last) {
+        return new BorrowPageToken(last.getBorrowTime(), last.getBookId());
+    }
+
+    public String encode() {
+        String raw = borrowTime + "|" + bookId;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    public static BorrowPageToken decode(String token) throws IllegalArgumentException {
+        String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        String[] parts = raw.split("\\|", 2);
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Invalid page token.");
+        }
+        return new BorrowPageToken(Long.parseLong(parts[0]), Integer.parseInt(parts[1]));
+    }
+
+    /**
+     * whether a record comes after this token in borrow_time DESC, book_id ASC order.
+     */
+    public boolean precedes(BorrowHistories.Item item) {
+        if (item.getBorrowTime() != borrowTime) {
+            return item.getBorrowTime() < borrowTime;
+        }
+        return item.getBookId() > bookId;
+    }
+
+    public long getBorrowTime() {
+        return borrowTime;
+    }
+
+    public int getBookId() {
+        return bookId;
+    }
+}
@@ -0,0 +1,73 @@
+package queries;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of a catalog import. only the first MAX_ERRORS rejected rows
+ * are described, the others are only counted.
+ */
+public class ImportReport {
+
+    public static final int MAX_ERRORS = 100;
+
+    private long rowCount;          /* number of data rows read from the file */
+    private long storedCount;       /* number of books stored in the library */
+    private long rejectedCount;     /* number of rows that have been rejected */
+    private final List<String> errors = new ArrayList<>();  /* "line N: reason" of the first rejected rows */
+    private long elapsedMillis;
+
+    public synchronized void addRow() {
+        rowCount++;
+    }
+
+    public synchronized void addStored(int n) {
+        storedCount += n;
+    }
+
+    public synchronized void addRejected(long line, String reason) {
+        rejectedCount++;
+        if (errors.size() < MAX_ERRORS) {
+            errors.add("line " + line + ": " + reason);
+        }
+    }
+
+    public synchronized long getRowCount() {
+        return rowCount;
+    }
+
+    public synchronized long getStoredCount() {
+        return storedCount;
+    }
+
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    public synchronized List<String> getErrors() {
+        return new ArrayList<>(errors);
+    }
+
+    public synchronized long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public synchronized void setElapsedMillis(long elapsedMillis) {
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /* rows read per second */
+    public synchronized double getThroughput() {
+        return elapsedMillis == 0 ? 0 : rowCount * 1000.0 / elapsedMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ImportReport {" + "rowCount=" + rowCount +
+                ", storedCount=" + storedCount +
+                ", rejectedCount=" + rejectedCount +
+                ", elapsedMillis=" + elapsedMillis +
+                ", throughput=" + String.format("%.1f", getThroughput()) + " rows/s" +
+                '}';
+    }
+}
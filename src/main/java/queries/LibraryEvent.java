@@ -0,0 +1,78 @@
+package queries;
+
+/**
+ * A committed change of stock or loans, published by the library.
+ *
+ * Note: the new stock is not known without another query, only the change.
+ *       a borrow takes one copy (delta = -1), a return gives one back (+1).
+ * */
+public class LibraryEvent {
+
+    public enum Type {
+        BORROW("borrow"),
+        RETURN("return"),
+        STOCK("stock"),
+        REMOVE_BOOK("removeBook");
+
+        private final String value;
+
+        Type(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+    }
+
+    private final long sequence;    /* increases by one per event published, starts from 1 */
+    private final Type type;
+    private final int bookId;
+    private final int cardId;       /* 0 for STOCK & REMOVE_BOOK */
+    private final int delta;        /* change of the stock, 0 for REMOVE_BOOK */
+    private final long time;        /* when the event has been published */
+
+    public LibraryEvent(long sequence, Type type, int bookId, int cardId, int delta, long time) {
+        this.sequence = sequence;
+        this.type = type;
+        this.bookId = bookId;
+        this.cardId = cardId;
+        this.delta = delta;
+        this.time = time;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getBookId() {
+        return bookId;
+    }
+
+    public int getCardId() {
+        return cardId;
+    }
+
+    public int getDelta() {
+        return delta;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    @Override
+    public String toString() {
+        return "LibraryEvent {" + "sequence=" + sequence +
+                ", type=" + type +
+                ", bookId=" + bookId +
+                ", cardId=" + cardId +
+                ", delta=" + delta +
+                ", time=" + time +
+                '}';
+    }
+}
@@ -0,0 +1,244 @@
+package utils;
+
+import entities.Book;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bounded cache of book info by book_id, with W-TinyLFU eviction. it only
+ * serves the book info of borrow histories, when enabled by book_cache_size.
+ *
+ * Note:
+ *      (1) a new book enters a small LRU window. when it falls out of the
+ *          window, it is only admitted into the main area if it has been
+ *          asked for more often than the book it would push out, so a scan
+ *          of many cold books can not flush the popular ones.
+ *      (2) the main area is a segmented LRU: books hit in probation move to
+ *          protected, books falling out of protected go back to probation.
+ *      (3) access frequencies are estimated by a count-min sketch of small
+ *          counters, which are halved from time to time, so that books that
+ *          used to be popular are forgotten.
+ *      (4) the stock of a book is not cached, it is always 0 in the copies
+ *          handed out. the stock lives in the database only.
+ *      (5) like {@link BookQueryCache}, every invalidation bumps a generation,
+ *          info read from the database before it is not put into the cache.
+ *      (6) books modified by another process are never invalidated, so the
+ *          info of a book is only used for ttl ms after it has been read.
+ */
+public class BookCache {
+
+    private static final int SKETCH_DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final long[] SEEDS = {
+            0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+
+    private final long ttl;
+    private final int windowCapacity;
+    private final int protectedCapacity;
+    private final int mainCapacity;
+    /* every map is kept in LRU order, the eldest entry comes first */
+    private final LinkedHashMap<Integer, CachedBook> window = new LinkedHashMap<>();
+    private final LinkedHashMap<Integer, CachedBook> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<Integer, CachedBook> protect = new LinkedHashMap<>();
+
+    /* count-min sketch, SKETCH_DEPTH rows of width counters */
+    private final int[] sketch;
+    private final int widthMask;
+    private final int sampleSize;
+    private int samples = 0;
+
+    private long generation = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    private static final class CachedBook {
+        private final Book book;
+        private final long expiresAt;
+
+        private CachedBook(Book book, long expiresAt) {
+            this.book = book;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * @param capacity max number of cached books
+     * @param ttl      ms, how long the info of a book may be used
+     */
+    public BookCache(int capacity, long ttl) {
+        this.ttl = ttl;
+        capacity = Math.max(2, capacity);
+        this.windowCapacity = Math.max(1, capacity / 100);
+        this.mainCapacity = capacity - windowCapacity;
+        this.protectedCapacity = mainCapacity * 4 / 5;
+        int width = Integer.highestOneBit(Math.max(16, capacity * 2 - 1)) << 1;
+        this.sketch = new int[SKETCH_DEPTH * width];
+        this.widthMask = width - 1;
+        this.sampleSize = capacity * 10;
+    }
+
+    /**
+     * read the generation before querying the database, and pass it to {@link #put}.
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * @return a copy of the cached book, null on a miss
+     */
+    public synchronized Book get(int bookId) {
+        increment(bookId);
+        CachedBook cached = window.remove(bookId);
+        if (cached != null) {
+            window.put(bookId, cached);
+        } else if ((cached = probation.remove(bookId)) != null) {
+            promote(bookId, cached);
+        } else if ((cached = protect.remove(bookId)) != null) {
+            protect.put(bookId, cached);
+        }
+        if (cached != null && System.currentTimeMillis() > cached.expiresAt) {
+            // Too old, it may have been modified by another process
+            window.remove(bookId);
+            probation.remove(bookId);
+            protect.remove(bookId);
+            cached = null;
+        }
+        if (cached == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return cached.book.clone();
+    }
+
+    public synchronized void put(Book book, long generation) {
+        if (generation != this.generation) {
+            // Some book has changed since the info was read
+            return;
+        }
+        int bookId = book.getBookId();
+        Book copy = book.clone();
+        copy.setStock(0);
+        CachedBook cached = new CachedBook(copy, System.currentTimeMillis() + ttl);
+        if (window.containsKey(bookId)) {
+            window.put(bookId, cached);
+        } else if (probation.containsKey(bookId)) {
+            probation.put(bookId, cached);
+        } else if (protect.containsKey(bookId)) {
+            protect.put(bookId, cached);
+        } else {
+            window.put(bookId, cached);
+            if (window.size() > windowCapacity) {
+                admit(removeEldest(window));
+            }
+        }
+    }
+
+    /**
+     * the info of a book has been modified, or the book has been removed.
+     * call it after the commit.
+     */
+    public synchronized void invalidate(int bookId) {
+        generation++;
+        window.remove(bookId);
+        probation.remove(bookId);
+        protect.remove(bookId);
+    }
+
+    public synchronized void clear() {
+        generation++;
+        window.clear();
+        probation.clear();
+        protect.clear();
+    }
+
+    public synchronized int size() {
+        return window.size() + probation.size() + protect.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized double getHitRate() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BookCache {" + "size=" + size() +
+                ", hitCount=" + hitCount +
+                ", missCount=" + missCount +
+                ", hitRate=" + String.format("%.3f", getHitRate()) +
+                '}';
+    }
+
+    /* a book fell out of the window, let it into probation if it is worth more than the victim */
+    private void admit(CachedBook candidate) {
+        int candidateId = candidate.book.getBookId();
+        if (probation.size() + protect.size() < mainCapacity) {
+            probation.put(candidateId, candidate);
+            return;
+        }
+        LinkedHashMap<Integer, CachedBook> victims = probation.isEmpty() ? protect : probation;
+        int victimId = victims.keySet().iterator().next();
+        if (frequency(candidateId) > frequency(victimId)) {
+            victims.remove(victimId);
+            probation.put(candidateId, candidate);
+        }
+    }
+
+    private void promote(int bookId, CachedBook cached) {
+        protect.put(bookId, cached);
+        if (protect.size() > protectedCapacity) {
+            CachedBook demoted = removeEldest(protect);
+            probation.put(demoted.book.getBookId(), demoted);
+        }
+    }
+
+    private static CachedBook removeEldest(LinkedHashMap<Integer, CachedBook> map) {
+        Iterator<CachedBook> it = map.values().iterator();
+        CachedBook eldest = it.next();
+        it.remove();
+        return eldest;
+    }
+
+    private void increment(int bookId) {
+        boolean added = false;
+        for (int i = 0; i < SKETCH_DEPTH; i++) {
+            int index = indexOf(bookId, i);
+            if (sketch[index] < MAX_COUNT) {
+                sketch[index]++;
+                added = true;
+            }
+        }
+        if (added && ++samples >= sampleSize) {
+            // Age every counter, so the sketch follows changes of popularity
+            for (int i = 0; i < sketch.length; i++) {
+                sketch[i] >>>= 1;
+            }
+            samples /= 2;
+        }
+    }
+
+    private int frequency(int bookId) {
+        int min = MAX_COUNT;
+        for (int i = 0; i < SKETCH_DEPTH; i++) {
+            min = Math.min(min, sketch[indexOf(bookId, i)]);
+        }
+        return min;
+    }
+
+    private int indexOf(int bookId, int row) {
+        long h = (bookId + SEEDS[row]) * SEEDS[(row + 1) % SKETCH_DEPTH];
+        h ^= h >>> 32;
+        return row * (widthMask + 1) + ((int) h & widthMask);
+    }
+}
@@ -0,0 +1,205 @@
+package utils;
+
+import entities.Book;
+import queries.BookQueryConditions;
+import queries.BookQueryResults;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Bounded cache of queryBook results, keyed by the query conditions.
+ *
+ * Note:
+ *      (1) entries are dropped in LRU order when the cache is full,
+ *          and are never served after they are older than ttl ms.
+ *      (2) a change to one book only drops the entries it may affect:
+ *          entries that contain the book, and entries whose conditions
+ *          the book matches. the matching ignores case & accents, as the
+ *          collations of MySQL & SQL Server do, so that it never misses
+ *          a book the database would match.
+ *      (3) every invalidation bumps a generation counter, a result read
+ *          from the database before an invalidation is not put into
+ *          the cache, so a slow reader can not bring stale rows back.
+ *      (4) books are copied in and out, callers may modify what they get.
+ */
+public class BookQueryCache {
+
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+    private final long ttl;
+    private final LinkedHashMap<String, CachedResult> entries;
+    /* guarded by this */
+    private long generation = 0;
+
+    private static final class CachedResult {
+        private final BookQueryConditions conditions;
+        private final List<Book> books;
+        private final String nextPageToken;
+        private final Set<Integer> bookIds = new HashSet<>();
+        private final long expiresAt;
+
+        private CachedResult(BookQueryConditions conditions, BookQueryResults results, long expiresAt) {
+            this.conditions = conditions;
+            this.books = copyOf(results.getResults());
+            this.nextPageToken = results.getNextPageToken();
+            for (Book book : books) {
+                bookIds.add(book.getBookId());
+            }
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * @param capacity max number of cached queries
+     * @param ttl      ms, how long a result may be served from the cache
+     */
+    public BookQueryCache(int capacity, long ttl) {
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * read the generation before querying the database, and pass it to {@link #put}.
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * @return a copy of the cached results, null on a miss
+     */
+    public synchronized BookQueryResults get(BookQueryConditions conditions) {
+        String key = conditions.toString();
+        CachedResult entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() > entry.expiresAt) {
+            entries.remove(key);
+            return null;
+        }
+        return new BookQueryResults(copyOf(entry.books), entry.nextPageToken);
+    }
+
+    public synchronized void put(BookQueryConditions conditions, BookQueryResults results, long generation) {
+        if (generation != this.generation) {
+            // Some book has changed since the results were read
+            return;
+        }
+        entries.put(conditions.toString(), new CachedResult(conditions.clone(), results,
+                System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * a book has been stored or its info has been modified.
+     */
+    public synchronized void invalidate(Book book) {
+        generation++;
+        Iterator<CachedResult> it = entries.values().iterator();
+        while (it.hasNext()) {
+            CachedResult entry = it.next();
+            if (entry.bookIds.contains(book.getBookId()) || matches(book, entry.conditions)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * the stock of a book has changed, its other attributes are unknown to the caller.
+     */
+    public synchronized void invalidateStock(int bookId) {
+        generation++;
+        Iterator<CachedResult> it = entries.values().iterator();
+        while (it.hasNext()) {
+            CachedResult entry = it.next();
+            // The book may move into a page sorted by stock
+            if (entry.bookIds.contains(bookId) || entry.conditions.getSortBy() == Book.SortColumn.STOCK) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * a book has been removed.
+     */
+    public synchronized void invalidate(int bookId) {
+        generation++;
+        entries.values().removeIf(entry -> entry.bookIds.contains(bookId));
+    }
+
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * whether the database would return book for conditions, ignoring the page.
+     * see note (2) for how strings are compared.
+     */
+    public static boolean matches(Book book, BookQueryConditions conditions) {
+        if (conditions.getCategory() != null && (book.getCategory() == null
+                || !fold(conditions.getCategory()).equals(fold(book.getCategory())))) {
+            return false;
+        }
+        if (conditions.getTitle() != null && !containsIgnoreCase(book.getTitle(), conditions.getTitle())) {
+            return false;
+        }
+        if (conditions.getPress() != null && !containsIgnoreCase(book.getPress(), conditions.getPress())) {
+            return false;
+        }
+        if (conditions.getMinPublishYear() != null && book.getPublishYear() < conditions.getMinPublishYear()) {
+            return false;
+        }
+        if (conditions.getMaxPublishYear() != null && book.getPublishYear() > conditions.getMaxPublishYear()) {
+            return false;
+        }
+        if (conditions.getAuthor() != null && !containsIgnoreCase(book.getAuthor(), conditions.getAuthor())) {
+            return false;
+        }
+        if (conditions.getMinPrice() != null && book.getPrice() < conditions.getMinPrice()) {
+            return false;
+        }
+        return conditions.getMaxPrice() == null || book.getPrice() <= conditions.getMaxPrice();
+    }
+
+    private static boolean containsIgnoreCase(String s, String part) {
+        return s != null && fold(s).contains(fold(part));
+    }
+
+    /* lower case without accents, "Caf\u00c9" --> "cafe" */
+    private static String fold(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                String decomposed = Normalizer.normalize(s, Normalizer.Form.NFD);
+                return COMBINING_MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+            }
+        }
+        return s.toLowerCase(Locale.ROOT);
+    }
+
+    private static List<Book> copyOf(List<Book> books) {
+        List<Book> copy = new ArrayList<>(books.size());
+        for (Book book : books) {
+            copy.add(book.clone());
+        }
+        return copy;
+    }
+}
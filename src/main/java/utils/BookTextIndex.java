@@ -0,0 +1,222 @@
+package utils;
+
+import entities.Book;
+import queries.BookQueryConditions;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Trigram index over the title, press & author of books, turns the fuzzy
+ * conditions of queryBook into a set of candidate book_ids.
+ *
+ * Note:
+ *      (1) the candidates are a superset of the matching books, the DBMS still
+ *          runs the LIKE on them, so case & accent folding here only has to be
+ *          at least as loose as the collation of the DBMS.
+ *      (2) a condition shorter than 3 characters (between wildcards) can not be
+ *          looked up, such conditions narrow nothing.
+ *      (3) the index is not ready until it has been filled from the database,
+ *          callers must not use candidates of an index that is not ready.
+ *      (4) only changes made through this process are seen, so it can only be
+ *          used while the process is the one writer of the book table.
+ */
+public class BookTextIndex {
+
+    /* LIKE wildcards & escapes of MySQL and SQL Server, a condition is only looked up between them */
+    private static final Pattern WILDCARDS = Pattern.compile("[%_\\\\\\[\\]]");
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+    private final FieldIndex title = new FieldIndex();
+    private final FieldIndex press = new FieldIndex();
+    private final FieldIndex author = new FieldIndex();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean ready = false;
+
+    private static final class FieldIndex {
+        private final Map<String, Set<Integer>> postings = new HashMap<>();
+        private final Map<Integer, Set<String>> grams = new HashMap<>();
+
+        private void add(int bookId, String text) {
+            Set<String> bookGrams = grams.computeIfAbsent(bookId, k -> new HashSet<>());
+            for (String gram : gramsOf(text)) {
+                if (bookGrams.add(gram)) {
+                    postings.computeIfAbsent(gram, k -> new HashSet<>()).add(bookId);
+                }
+            }
+        }
+
+        private void replace(int bookId, String text) {
+            Set<String> newGrams = gramsOf(text);
+            Set<String> oldGrams = grams.getOrDefault(bookId, Collections.emptySet());
+            for (String gram : oldGrams) {
+                if (!newGrams.contains(gram)) {
+                    unpost(gram, bookId);
+                }
+            }
+            for (String gram : newGrams) {
+                postings.computeIfAbsent(gram, k -> new HashSet<>()).add(bookId);
+            }
+            grams.put(bookId, newGrams);
+        }
+
+        private void remove(int bookId) {
+            Set<String> oldGrams = grams.remove(bookId);
+            if (oldGrams != null) {
+                for (String gram : oldGrams) {
+                    unpost(gram, bookId);
+                }
+            }
+        }
+
+        private void unpost(String gram, int bookId) {
+            Set<Integer> ids = postings.get(gram);
+            if (ids != null && ids.remove(bookId) && ids.isEmpty()) {
+                postings.remove(gram);
+            }
+        }
+
+        /* posting lists a book has to be in to match the condition, null if the condition is too short */
+        private List<Set<Integer>> lookup(String condition) {
+            List<Set<Integer>> lists = new ArrayList<>();
+            for (String part : WILDCARDS.split(condition)) {
+                for (String gram : gramsOf(part)) {
+                    lists.add(postings.getOrDefault(gram, Collections.emptySet()));
+                }
+            }
+            return lists.isEmpty() ? null : lists;
+        }
+
+        private void clear() {
+            postings.clear();
+            grams.clear();
+        }
+    }
+
+    /**
+     * add a book that is about to be stored, or the new info of a book that is
+     * about to be modified. call it before the commit, so the book is never missing.
+     */
+    public void add(Book book) {
+        add(book.getBookId(), book.getTitle(), book.getPress(), book.getAuthor());
+    }
+
+    public void add(int bookId, String titleText, String pressText, String authorText) {
+        lock.writeLock().lock();
+        try {
+            title.add(bookId, titleText);
+            press.add(bookId, pressText);
+            author.add(bookId, authorText);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * drop the old info of a modified book, call it after the commit.
+     */
+    public void replace(Book book) {
+        lock.writeLock().lock();
+        try {
+            title.replace(book.getBookId(), book.getTitle());
+            press.replace(book.getBookId(), book.getPress());
+            author.replace(book.getBookId(), book.getAuthor());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * drop a removed book, call it after the commit.
+     */
+    public void remove(int bookId) {
+        lock.writeLock().lock();
+        try {
+            title.remove(bookId);
+            press.remove(bookId);
+            author.remove(bookId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return book_ids that may match the fuzzy conditions, null if they narrow nothing
+     */
+    public Set<Integer> candidates(BookQueryConditions conditions) {
+        lock.readLock().lock();
+        try {
+            List<Set<Integer>> lists = new ArrayList<>();
+            if (conditions.getTitle() != null) {
+                addAll(lists, title.lookup(conditions.getTitle()));
+            }
+            if (conditions.getPress() != null) {
+                addAll(lists, press.lookup(conditions.getPress()));
+            }
+            if (conditions.getAuthor() != null) {
+                addAll(lists, author.lookup(conditions.getAuthor()));
+            }
+            if (lists.isEmpty()) {
+                return null;
+            }
+            // Intersect starting from the shortest posting list
+            lists.sort((a, b) -> Integer.compare(a.size(), b.size()));
+            Set<Integer> result = new HashSet<>(lists.get(0));
+            for (int i = 1; i < lists.size() && !result.isEmpty(); i++) {
+                result.retainAll(lists.get(i));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            title.clear();
+            press.clear();
+            author.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void addAll(List<Set<Integer>> lists, List<Set<Integer>> more) {
+        if (more != null) {
+            lists.addAll(more);
+        }
+    }
+
+    /* fold case & accents, then cut into overlapping 3-character grams */
+    private static Set<String> gramsOf(String text) {
+        Set<String> grams = new HashSet<>();
+        if (text == null) {
+            return grams;
+        }
+        String s = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("")
+                .toLowerCase(Locale.ROOT);
+        for (int i = 0; i + 3 <= s.length(); i++) {
+            grams.add(s.substring(i, i + 3));
+        }
+        return grams;
+    }
+}
@@ -0,0 +1,145 @@
+package utils;
+
+import entities.Card;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which cards exist, and the info of recently used ones.
+ *
+ * Note:
+ *      (1) every existing card_id is in a {@link BloomFilter}, a card_id the
+ *          filter has never seen does not exist, and can be refused without
+ *          asking the database. a hit proves nothing, removed cards stay in
+ *          the filter.
+ *      (2) the filter only learns of the cards registered by this process, so
+ *          the cache may only be enabled if this process is the only one that
+ *          registers cards. a card registered elsewhere is refused until the
+ *          filter is filled again.
+ *      (3) the filter is sized when it is filled, once it holds twice as many
+ *          cards as it has been sized for, it asks to be filled again.
+ *      (4) the info of at most capacity cards is kept in LRU order, removed
+ *          cards are dropped at once.
+ *      (5) the cache is not ready until it has been filled from the database,
+ *          {@link #mayExist} must not be trusted before.
+ *      (6) cards being registered are kept aside until their commit, and put
+ *          into every filter handed to {@link #fill} meanwhile, as a fill may
+ *          read the card table before they are committed.
+ */
+public class CardCache {
+
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    private volatile BloomFilter ids = null;
+    /* number of card_ids added since the last fill, guarded by this */
+    private int added = 0;
+    /* card_ids being registered, guarded by this */
+    private final Set<Integer> registering = new HashSet<>();
+    private final LinkedHashMap<Integer, Card> cards;
+
+    public CardCache(int capacity) {
+        this.cards = new LinkedHashMap<Integer, Card>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Card> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public boolean isReady() {
+        return ids != null;
+    }
+
+    /**
+     * a filter sized for count cards, to be filled & handed to {@link #fill}.
+     */
+    public static BloomFilter newFilter(int count) {
+        return new BloomFilter(Math.max(1024, count * 2), FALSE_POSITIVE_RATE);
+    }
+
+    /**
+     * start using a filter that holds every card_id of the database. read the
+     * card_ids while holding the lock of this cache, so that no card
+     * registered in between is lost.
+     */
+    public synchronized void fill(BloomFilter filter) {
+        for (int cardId : registering) {
+            filter.add(cardId);
+        }
+        ids = filter;
+        added = registering.size();
+    }
+
+    /**
+     * add a card that is about to be registered, call it before the commit,
+     * and {@link #registered} after the commit or rollback.
+     */
+    public synchronized void register(int cardId) {
+        registering.add(cardId);
+        add(cardId);
+    }
+
+    public synchronized void registered(int cardId) {
+        registering.remove(cardId);
+    }
+
+    /**
+     * add a card that exists in the database.
+     */
+    public synchronized void add(int cardId) {
+        BloomFilter filter = ids;
+        if (filter == null) {
+            return;
+        }
+        filter.add(cardId);
+        if (++added > filter.getExpected() * 2) {
+            // Too full to be selective any more, fill it again on next use
+            ids = null;
+        }
+    }
+
+    /**
+     * @return false if the card surely does not exist
+     */
+    public boolean mayExist(int cardId) {
+        BloomFilter filter = ids;
+        return filter == null || filter.mightContain(cardId);
+    }
+
+    public void put(Card card) {
+        synchronized (cards) {
+            cards.put(card.getCardId(), card.clone());
+        }
+    }
+
+    /**
+     * @return a copy of the card info, null if it is not cached
+     */
+    public Card get(int cardId) {
+        synchronized (cards) {
+            Card card = cards.get(cardId);
+            return card == null ? null : card.clone();
+        }
+    }
+
+    /**
+     * drop a removed card, call it after the commit.
+     */
+    public void remove(int cardId) {
+        synchronized (cards) {
+            cards.remove(cardId);
+        }
+    }
+
+    public synchronized void clear() {
+        ids = null;
+        added = 0;
+        registering.clear();
+        synchronized (cards) {
+            cards.clear();
+        }
+    }
+}
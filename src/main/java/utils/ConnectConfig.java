@@ -16,15 +16,50 @@ public final class ConnectConfig {
     private final String password;
     private final String db;
     private final DatabaseType type;
+    /* connection pool settings, see utils.ConnectionPool */
+    private final int poolMinSize;
+    private final int poolMaxSize;
+    private final long poolIdleTimeout;     // ms, idle connections above min size are closed after this
+    private final long poolMaxWait;         // ms, how long getConn() waits for a free connection
+    private final int poolValidationTimeout; // seconds, passed to Connection.isValid()
+    private final int statementCacheSize;   // prepared statements cached per connection
+    /* borrow coalescing settings, see BorrowCoalescer */
+    private final long borrowCoalesceWindow; // ms, 0 disables coalescing
+    private final int borrowCoalesceMaxBatch;
+    private final int lockStripes;          // stripes of the per-book lock table
+    private final int fetchSize;            // rows fetched per round trip by streaming queries
+    private final int batchSize;            // rows sent per JDBC batch by bulk inserts
+    private final boolean bulkLoad;         // store book lists through the native bulk load of the DBMS
+    /* queryBook result cache settings, see utils.BookQueryCache */
+    private final int queryCacheSize;       // max number of cached queries, 0 disables the cache
+    private final long queryCacheTtl;       // ms, how long a cached result may be served
+    private final int textIndexMaxCandidates; // max book_ids a fuzzy search narrows to, 0 disables the text index,
+                                              // only for a process that is the one writer of the book table
+    private final int cardCacheSize;        // cards whose info is cached, 0 disables the card cache
+    private final int bookCacheSize;        // books whose info is cached, 0 disables the book cache
+    private final long bookCacheTtl;        // ms, how long cached book info may be used
+    /* HTTP API settings, see HttpApiServer */
+    private final String httpBind;          // address the HTTP API listens on
+    private final int httpPort;             // 0 disables the HTTP API
+    private final int httpQueueSize;        // requests waiting for a worker, more are answered 503
+    private final int sseMaxClients;        // open event streams, more are answered 503
+    private final int sseBufferSize;        // events waiting to be sent on one stream, a slower client is dropped
+    private final String httpCorsOrigin;    // the origin of the frontend, empty sends no CORS headers
+    private final boolean httpReset;        // serve POST /reset, which drops every table
+    /* kiosk RPC settings, see KioskRpcServer */
+    private final String rpcBind;           // address the kiosk RPC listens on
+    private final int rpcPort;              // 0 disables the kiosk RPC
+    private final int rpcQueueSize;         // calls waiting for a worker, more are answered BUSY
+    private final int rpcMaxInFlight;       // calls of one connection handled or waiting for their replies
 
     public ConnectConfig() throws FileNotFoundException, NullPointerException, ClassNotFoundException {
-        URL res = ConnectConfig.class.getClassLoader().getResource("application.yaml");
-        if (res == null) {
-            throw new NullPointerException();
-        }
-        BufferedReader br = new BufferedReader(new FileReader(res.getPath()));
-        Yaml yaml = new Yaml();
-        Map<String, Object> objectMap = yaml.load(br);
+        this(load());
+    }
+
+    /**
+     * @param objectMap the configures by key, as in application.yaml
+     */
+    public ConnectConfig(Map<String, Object> objectMap) throws ClassNotFoundException {
         /* initialize all configures */
         host = (String)objectMap.getOrDefault("host", "localhost");
         port = (String)objectMap.getOrDefault("port", "3306");
@@ -32,8 +67,65 @@ public final class ConnectConfig {
         password = (String)objectMap.getOrDefault("password", "");
         db = (String)objectMap.getOrDefault("db", "library");
         type = DatabaseType.instance((String)objectMap.getOrDefault("type", "mysql"));
+        poolMinSize = intValue(objectMap, "pool_min_size", 1);
+        poolMaxSize = Math.max(poolMinSize, intValue(objectMap, "pool_max_size",
+                Runtime.getRuntime().availableProcessors() * 2));
+        poolIdleTimeout = intValue(objectMap, "pool_idle_timeout", 600000);
+        poolMaxWait = intValue(objectMap, "pool_max_wait", 30000);
+        poolValidationTimeout = intValue(objectMap, "pool_validation_timeout", 5);
+        statementCacheSize = Math.max(1, intValue(objectMap, "statement_cache_size", 64));
+        borrowCoalesceWindow = intValue(objectMap, "borrow_coalesce_window", 0);
+        borrowCoalesceMaxBatch = Math.max(1, intValue(objectMap, "borrow_coalesce_max_batch", 64));
+        lockStripes = Math.max(1, intValue(objectMap, "lock_stripes", 256));
+        fetchSize = Math.max(1, intValue(objectMap, "fetch_size", 1000));
+        batchSize = Math.max(1, intValue(objectMap, "batch_size", 1000));
+        bulkLoad = Boolean.parseBoolean(String.valueOf(objectMap.getOrDefault("bulk_load", false)).trim());
+        queryCacheSize = Math.max(0, intValue(objectMap, "query_cache_size", 1024));
+        queryCacheTtl = intValue(objectMap, "query_cache_ttl", 60000);
+        textIndexMaxCandidates = Math.max(0, intValue(objectMap, "text_index_max_candidates", 0));
+        cardCacheSize = Math.max(0, intValue(objectMap, "card_cache_size", 0));
+        bookCacheSize = Math.max(0, intValue(objectMap, "book_cache_size", 0));
+        bookCacheTtl = intValue(objectMap, "book_cache_ttl", 60000);
+        httpBind = String.valueOf(objectMap.getOrDefault("http_bind", "127.0.0.1")).trim();
+        httpPort = Math.max(0, intValue(objectMap, "http_port", 8000));
+        httpQueueSize = Math.max(1, intValue(objectMap, "http_queue_size", 1024));
+        sseMaxClients = Math.max(0, intValue(objectMap, "sse_max_clients", 256));
+        sseBufferSize = Math.max(1, intValue(objectMap, "sse_buffer_size", 256));
+        httpCorsOrigin = String.valueOf(objectMap.getOrDefault("http_cors_origin", "http://localhost:5173")).trim();
+        httpReset = Boolean.parseBoolean(String.valueOf(objectMap.getOrDefault("http_reset", false)).trim());
+        rpcBind = String.valueOf(objectMap.getOrDefault("rpc_bind", "127.0.0.1")).trim();
+        rpcPort = Math.max(0, intValue(objectMap, "rpc_port", 8001));
+        rpcQueueSize = Math.max(1, intValue(objectMap, "rpc_queue_size", 1024));
+        rpcMaxInFlight = Math.max(1, intValue(objectMap, "rpc_max_in_flight", 64));
         /* load database connect driver */
-        Class.forName(type.getDriverName());
+        if (!type.isInMemory()) {
+            Class.forName(type.getDriverName());
+        }
+    }
+
+    /**
+     * read "resources/application.yaml"
+     */
+    public static Map<String, Object> load() throws FileNotFoundException, NullPointerException {
+        URL res = ConnectConfig.class.getClassLoader().getResource("application.yaml");
+        if (res == null) {
+            throw new NullPointerException();
+        }
+        BufferedReader br = new BufferedReader(new FileReader(res.getPath()));
+        Yaml yaml = new Yaml();
+        return yaml.load(br);
+    }
+
+    /* yaml gives us Integer for unquoted numbers and String for quoted ones */
+    private static int intValue(Map<String, Object> objectMap, String key, int defaultValue) {
+        Object value = objectMap.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        return Integer.parseInt(value.toString().trim());
     }
 
     @Override
@@ -44,6 +136,35 @@ public final class ConnectConfig {
                 ", password='" + password + '\'' +
                 ", db='" + db + '\'' +
                 ", type='" + type.toString() + '\'' +
+                ", poolMinSize=" + poolMinSize +
+                ", poolMaxSize=" + poolMaxSize +
+                ", poolIdleTimeout=" + poolIdleTimeout +
+                ", poolMaxWait=" + poolMaxWait +
+                ", poolValidationTimeout=" + poolValidationTimeout +
+                ", statementCacheSize=" + statementCacheSize +
+                ", borrowCoalesceWindow=" + borrowCoalesceWindow +
+                ", borrowCoalesceMaxBatch=" + borrowCoalesceMaxBatch +
+                ", lockStripes=" + lockStripes +
+                ", fetchSize=" + fetchSize +
+                ", batchSize=" + batchSize +
+                ", bulkLoad=" + bulkLoad +
+                ", queryCacheSize=" + queryCacheSize +
+                ", queryCacheTtl=" + queryCacheTtl +
+                ", textIndexMaxCandidates=" + textIndexMaxCandidates +
+                ", cardCacheSize=" + cardCacheSize +
+                ", bookCacheSize=" + bookCacheSize +
+                ", bookCacheTtl=" + bookCacheTtl +
+                ", httpBind='" + httpBind + '\'' +
+                ", httpPort=" + httpPort +
+                ", httpQueueSize=" + httpQueueSize +
+                ", sseMaxClients=" + sseMaxClients +
+                ", sseBufferSize=" + sseBufferSize +
+                ", httpCorsOrigin='" + httpCorsOrigin + '\'' +
+                ", httpReset=" + httpReset +
+                ", rpcBind='" + rpcBind + '\'' +
+                ", rpcPort=" + rpcPort +
+                ", rpcQueueSize=" + rpcQueueSize +
+                ", rpcMaxInFlight=" + rpcMaxInFlight +
                 '}';
     }
 
@@ -70,4 +191,120 @@ public final class ConnectConfig {
     public DatabaseType getType() {
         return type;
     }
+
+    public int getPoolMinSize() {
+        return poolMinSize;
+    }
+
+    public int getPoolMaxSize() {
+        return poolMaxSize;
+    }
+
+    public long getPoolIdleTimeout() {
+        return poolIdleTimeout;
+    }
+
+    public long getPoolMaxWait() {
+        return poolMaxWait;
+    }
+
+    public int getPoolValidationTimeout() {
+        return poolValidationTimeout;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    public long getBorrowCoalesceWindow() {
+        return borrowCoalesceWindow;
+    }
+
+    public int getBorrowCoalesceMaxBatch() {
+        return borrowCoalesceMaxBatch;
+    }
+
+    public int getLockStripes() {
+        return lockStripes;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public boolean isBulkLoad() {
+        return bulkLoad;
+    }
+
+    public int getQueryCacheSize() {
+        return queryCacheSize;
+    }
+
+    public long getQueryCacheTtl() {
+        return queryCacheTtl;
+    }
+
+    public int getTextIndexMaxCandidates() {
+        return textIndexMaxCandidates;
+    }
+
+    public int getCardCacheSize() {
+        return cardCacheSize;
+    }
+
+    public int getBookCacheSize() {
+        return bookCacheSize;
+    }
+
+    public int getHttpPort() {
+        return httpPort;
+    }
+
+    public int getHttpQueueSize() {
+        return httpQueueSize;
+    }
+
+    public int getSseMaxClients() {
+        return sseMaxClients;
+    }
+
+    public int getSseBufferSize() {
+        return sseBufferSize;
+    }
+
+    public int getRpcPort() {
+        return rpcPort;
+    }
+
+    public int getRpcMaxInFlight() {
+        return rpcMaxInFlight;
+    }
+
+    public long getBookCacheTtl() {
+        return bookCacheTtl;
+    }
+
+    public String getHttpBind() {
+        return httpBind;
+    }
+
+    public String getHttpCorsOrigin() {
+        return httpCorsOrigin;
+    }
+
+    public boolean isHttpReset() {
+        return httpReset;
+    }
+
+    public String getRpcBind() {
+        return rpcBind;
+    }
+
+    public int getRpcQueueSize() {
+        return rpcQueueSize;
+    }
 }
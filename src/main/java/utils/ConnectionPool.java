@@ -0,0 +1,245 @@
+package utils;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of JDBC connections.
+ *
+ * Note:
+ *      (1) at most maxSize connections are leased at the same time, callers
+ *          that find the pool exhausted wait up to maxWait ms and then fail.
+ *      (2) idle connections are kept in LIFO order, so the hot ones are reused
+ *          and the cold ones age out; connections idle for longer than
+ *          idleTimeout are closed by a background evictor down to minSize.
+ *      (3) a connection that has been idle for a while is validated before
+ *          it is handed out, broken connections are silently replaced.
+ *      (4) every connection is handed out with auto-commit disabled, and
+ *          uncommitted work is rolled back when it is given back.
+ *      (5) every connection owns a {@link StatementCache}, so statements
+ *          prepared through {@link #prepare} survive across leases.
+ */
+public class ConnectionPool {
+
+    /* skip validation for connections that were used very recently */
+    private static final long VALIDATION_BYPASS_MS = 500;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeout;
+    private final long maxWait;
+    private final int validationTimeout;
+    private final int statementCacheSize;
+
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Map<Connection, PooledConnection> leased = new ConcurrentHashMap<>();
+    private final Semaphore permits;
+    private final AtomicInteger total = new AtomicInteger(0);
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed = false;
+
+    private static final class PooledConnection {
+        private final Connection conn;
+        private final StatementCache statements;
+        private long lastUsed;
+
+        private PooledConnection(Connection conn, int statementCacheSize) {
+            this.conn = conn;
+            this.statements = new StatementCache(conn, statementCacheSize);
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    public ConnectionPool(ConnectConfig conf) throws SQLException {
+        this.url = conf.getType().url(conf.getHost(), conf.getPort(), conf.getDB(), conf.isBulkLoad());
+        this.user = conf.getUser();
+        this.password = conf.getPassword();
+        this.minSize = conf.getPoolMinSize();
+        this.maxSize = conf.getPoolMaxSize();
+        this.idleTimeout = conf.getPoolIdleTimeout();
+        this.maxWait = conf.getPoolMaxWait();
+        this.validationTimeout = conf.getPoolValidationTimeout();
+        this.statementCacheSize = conf.getStatementCacheSize();
+        this.permits = new Semaphore(maxSize, true);
+        /* open min connections eagerly, so that a bad config fails fast */
+        try {
+            for (int i = 0; i < minSize; i++) {
+                idle.offerLast(create());
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, Math.min(idleTimeout / 2, 30000));
+        this.evictor.scheduleWithFixedDelay(this::evict, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * lease a connection from the pool, waits up to maxWait ms if the pool is exhausted.
+     */
+    public Connection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool has been closed.");
+        }
+        try {
+            if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timeout after " + maxWait + "ms waiting for a free connection.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a free connection.", e);
+        }
+        try {
+            PooledConnection pc;
+            while ((pc = idle.pollFirst()) != null) {
+                if (validate(pc)) {
+                    break;
+                }
+                destroy(pc);
+            }
+            if (pc == null) {
+                pc = create();
+            }
+            leased.put(pc.conn, pc);
+            return pc.conn;
+        } catch (SQLException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * give a connection back to the pool, uncommitted work is rolled back.
+     */
+    public void giveBack(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        PooledConnection pc = leased.remove(conn);
+        if (pc == null) {
+            return;
+        }
+        try {
+            conn.rollback();
+            if (closed) {
+                destroy(pc);
+            } else {
+                pc.lastUsed = System.currentTimeMillis();
+                idle.offerFirst(pc);
+            }
+        } catch (SQLException e) {
+            /* the connection is broken, do not reuse it */
+            destroy(pc);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * prepare a statement on a leased connection through its statement cache.
+     * the returned statement must not be closed by the caller.
+     */
+    public PreparedStatement prepare(Connection conn, String sql, int autoGeneratedKeys) throws SQLException {
+        PooledConnection pc = leased.get(conn);
+        if (pc == null) {
+            throw new SQLException("Connection is not leased from this pool.");
+        }
+        return pc.statements.prepare(sql, autoGeneratedKeys);
+    }
+
+    public void close() {
+        closed = true;
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) {
+            destroy(pc);
+        }
+        /* leased connections are closed when they are given back */
+    }
+
+    public int getTotalSize() {
+        return total.get();
+    }
+
+    public int getIdleSize() {
+        return idle.size();
+    }
+
+    public int getLeasedSize() {
+        return leased.size();
+    }
+
+    private PooledConnection create() throws SQLException {
+        total.incrementAndGet();
+        try {
+            Connection conn = DriverManager.getConnection(url, user, password);
+            /* Note: you need to connect & release trx explicitly */
+            conn.setAutoCommit(false);
+            return new PooledConnection(conn, statementCacheSize);
+        } catch (SQLException e) {
+            total.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private boolean validate(PooledConnection pc) {
+        if (System.currentTimeMillis() - pc.lastUsed < VALIDATION_BYPASS_MS) {
+            return true;
+        }
+        try {
+            return pc.conn.isValid(validationTimeout);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void destroy(PooledConnection pc) {
+        total.decrementAndGet();
+        pc.statements.close();
+        try {
+            pc.conn.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* close connections idle for too long, then top up to min size */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<PooledConnection> it = idle.descendingIterator();
+        while (it.hasNext() && total.get() > minSize) {
+            PooledConnection pc = it.next();
+            if (now - pc.lastUsed > idleTimeout && idle.remove(pc)) {
+                destroy(pc);
+            }
+        }
+        try {
+            while (!closed && total.get() < minSize) {
+                idle.offerLast(create());
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,5 +1,11 @@
 package utils;
 
+import entities.Book;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
 public interface DBInitializer {
 
     String sqlDropBook();
@@ -8,5 +14,21 @@ public interface DBInitializer {
     String sqlCreateBook();
     String sqlCreateCard();
     String sqlCreateBorrow();
+    /* unreturned borrows of a book, see borrowBook & removeBook */
+    String sqlCreateBorrowBookIndex();
+    /* unreturned borrows of a card, see returnBook & removeCard */
+    String sqlCreateBorrowCardIndex();
+    /* borrow history of a card by borrow_time, see showBorrowHistory */
+    String sqlCreateBorrowTimeIndex();
 
+    /**
+     * insert books through the native bulk load of the DBMS, within the
+     * transaction of conn. the generated book_ids are not returned, look
+     * them up by the unique key of book afterwards.
+     *
+     * @return false if the DBMS has no bulk load path, nothing has been done then
+     */
+    default boolean bulkLoadBooks(Connection conn, List<Book> books) throws SQLException {
+        return false;
+    }
 }
@@ -1,30 +1,41 @@
 package utils;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class DatabaseConnector {
 
     private final ConnectConfig conf;
-    private Connection conn;
+    private volatile ConnectionPool pool;
+    /* the pool of every leased connection, which may have been released since */
+    private final Map<Connection, ConnectionPool> leases = new ConcurrentHashMap<>();
+    /* run by release() while the database can still be used */
+    private final List<Runnable> releaseHooks = new CopyOnWriteArrayList<>();
+    private boolean connected = false;
 
     public DatabaseConnector(ConnectConfig conf) {
         this.conf = conf;
     }
 
     public boolean connect() {
-        if (conn != null) {
+        if (connected) {
             return false;
         }
+        if (conf.getType().isInMemory()) {
+            /* nothing to connect to */
+            connected = true;
+            return true;
+        }
         try {
-            String url = conf.getType().url(conf.getHost(), conf.getPort(), conf.getDB());
-            conn = DriverManager.getConnection(url, conf.getUser(), conf.getPassword());
-            if (conn != null) {
-                /* Note: you need to connect & release trx explicitly */
-                conn.setAutoCommit(false);
-                return true;
-            }
+            pool = new ConnectionPool(conf);
+            connected = true;
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -32,23 +43,76 @@ public class DatabaseConnector {
     }
 
     public boolean release() {
-        if (conn == null) {
+        if (!connected) {
             return false;
         }
-        try {
-            conn.close();
-            conn = null;
-            return true;
-        } catch (SQLException e) {
-            e.printStackTrace();
+        for (Runnable hook : releaseHooks) {
+            hook.run();
         }
-        return false;
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+        connected = false;
+        return true;
     }
 
-    public Connection getConn() {
+    /**
+     * lease a connection from the pool. the caller owns it until
+     * {@link #releaseConn(Connection)} is called, and must commit
+     * its own work before that.
+     */
+    public Connection getConn() throws SQLException {
+        ConnectionPool p = pool;
+        if (p == null) {
+            throw new SQLException("Database is not connected.");
+        }
+        Connection conn = p.borrow();
+        leases.put(conn, p);
         return conn;
     }
 
+    /**
+     * give a leased connection back, uncommitted work is rolled back. a
+     * connection of a pool released meanwhile is closed by that pool.
+     */
+    public void releaseConn(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        ConnectionPool p = leases.remove(conn);
+        if (p != null) {
+            p.giveBack(conn);
+        }
+    }
+
+    /**
+     * prepare a statement on a leased connection. statements are cached
+     * per connection by SQL text, so the caller must not close them.
+     */
+    public PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+        return prepare(conn, sql, Statement.NO_GENERATED_KEYS);
+    }
+
+    public PreparedStatement prepare(Connection conn, String sql, int autoGeneratedKeys) throws SQLException {
+        ConnectionPool p = leases.get(conn);
+        if (p == null) {
+            throw new SQLException("Connection is not leased from this connector.");
+        }
+        return p.prepare(conn, sql, autoGeneratedKeys);
+    }
+
+    /**
+     * run hook on every release, before the pool is closed.
+     */
+    public void onRelease(Runnable hook) {
+        releaseHooks.add(hook);
+    }
+
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
     public ConnectConfig getConf() {
         return conf;
     }
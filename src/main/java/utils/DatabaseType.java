@@ -2,9 +2,12 @@ package utils;
 
 public enum DatabaseType {
     MYSQL("mysql", "com.mysql.cj.jdbc.Driver", new MysqlInitializer()),
-    // TODO: to be updated
-    POSTGRES("postgresql", "org.postgresql.Driver", new MysqlInitializer()),
-    SQLSERVER("sqlserver", "com.microsoft.sqlserver.jdbc.SQLServerDriver", new SqlServerInitializer());
+    POSTGRES("postgresql", "org.postgresql.Driver", new PostgresInitializer()),
+    SQLSERVER("sqlserver", "com.microsoft.sqlserver.jdbc.SQLServerDriver", new SqlServerInitializer()),
+    // an embedded H2 database in MySQL mode, for tests without a database server. the driver is a test dependency
+    H2("h2", "org.h2.Driver", new H2Initializer()),
+    // no database at all, see InMemoryLibraryManagementSystemImpl
+    MEMORY("memory", null, null);
 
     DatabaseType(String typeName, String driverName, DBInitializer dbInitializer) {
         this.typeName = typeName;
@@ -20,13 +23,24 @@ public enum DatabaseType {
                 '}';
     }
 
-    public String url(String host, String port, String db) {
+    /**
+     * @param bulkLoad whether the driver should allow the bulk load of {@link DBInitializer#bulkLoadBooks}
+     */
+    public String url(String host, String port, String db, boolean bulkLoad) {
         switch (this) {
+            /* sqlserver prepares statements on the server by default (prepareMethod=prepexec) */
             case SQLSERVER:
                 return String.format("jdbc:sqlserver://%s:%s;DatabaseName=%s;encrypt=false", host, port, db);
             case MYSQL:
+                return String.format("jdbc:%s://%s:%s/%s?useServerPrepStmts=true&useCursorFetch=true&rewriteBatchedStatements=true%s",
+                        typeName, host, port, db, bulkLoad ? "&allowLoadLocalInfile=true" : "");
             case POSTGRES:
                 return String.format("jdbc:%s://%s:%s/%s", typeName, host, port, db);
+            case H2:
+                /* kept while the JVM runs, so a reconnect finds the same data */
+                return String.format("jdbc:h2:mem:%s;MODE=MySQL;DATABASE_TO_LOWER=TRUE;IGNORECASE=TRUE;DB_CLOSE_DELAY=-1", db);
+            case MEMORY:
+                return null;
         }
         return null;
     }
@@ -48,6 +62,10 @@ public enum DatabaseType {
         return driverName;
     }
 
+    public boolean isInMemory() {
+        return driverName == null;
+    }
+
     public DBInitializer getDbInitializer() {
         return dbInitializer;
     }
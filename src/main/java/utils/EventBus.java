@@ -0,0 +1,110 @@
+package utils;
+
+import queries.LibraryEvent;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fans the events of the library out to its subscribers, in memory.
+ *
+ * Note:
+ *      (1) publishing never blocks. every subscriber has a bounded buffer,
+ *          a subscriber whose buffer is full is dropped, it has to subscribe
+ *          again & catch up by a query.
+ *      (2) with no subscribers, publishing costs no allocation, so the
+ *          library may publish unconditionally.
+ *      (3) events are published after the commit, so a subscriber never
+ *          hears of a change it could not read yet.
+ */
+public class EventBus {
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    public final class Subscription implements AutoCloseable {
+        private final Set<Integer> bookIds;
+        private final Set<Integer> cardIds;
+        private final BlockingQueue<LibraryEvent> buffer;
+        private volatile boolean dropped = false;
+
+        private Subscription(Set<Integer> bookIds, Set<Integer> cardIds, int capacity) {
+            this.bookIds = bookIds;
+            this.cardIds = cardIds;
+            this.buffer = new ArrayBlockingQueue<>(capacity);
+        }
+
+        /**
+         * @return the next event, null if there is none within the timeout
+         */
+        public LibraryEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return buffer.poll(timeout, unit);
+        }
+
+        /**
+         * @return whether the subscriber has been dropped for falling behind
+         */
+        public boolean isDropped() {
+            return dropped;
+        }
+
+        @Override
+        public void close() {
+            subscriptions.remove(this);
+        }
+
+        private boolean accepts(LibraryEvent event) {
+            return (bookIds.isEmpty() || bookIds.contains(event.getBookId()))
+                    && (cardIds.isEmpty() || cardIds.contains(event.getCardId()));
+        }
+
+        private void offer(LibraryEvent event) {
+            if (!buffer.offer(event)) {
+                dropped = true;
+                close();
+            }
+        }
+    }
+
+    /**
+     * @param bookIds  events of these books only, empty for all books
+     * @param cardIds  events of these cards only, empty for all cards
+     * @param capacity max number of events waiting for the subscriber
+     */
+    public Subscription subscribe(Set<Integer> bookIds, Set<Integer> cardIds, int capacity) {
+        Subscription subscription = new Subscription(copyOf(bookIds), copyOf(cardIds), Math.max(1, capacity));
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * call it after the change has been committed.
+     */
+    public void publish(LibraryEvent.Type type, int bookId, int cardId, int delta) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        LibraryEvent event = new LibraryEvent(sequence.incrementAndGet(), type, bookId, cardId, delta,
+                System.currentTimeMillis());
+        for (Subscription subscription : subscriptions) {
+            if (subscription.accepts(event)) {
+                subscription.offer(event);
+            }
+        }
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    private static Set<Integer> copyOf(Set<Integer> ids) {
+        return ids == null ? Collections.<Integer>emptySet() : new HashSet<>(ids);
+    }
+}
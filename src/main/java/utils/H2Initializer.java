@@ -0,0 +1,20 @@
+package utils;
+
+import entities.Book;
+
+import java.sql.Connection;
+import java.util.List;
+
+/**
+ * H2 in MySQL mode takes the tables of MySQL as they are.
+ */
+public class H2Initializer extends MysqlInitializer {
+
+    /**
+     * H2 has no LOAD DATA, books are inserted in JDBC batches.
+     */
+    @Override
+    public boolean bulkLoadBooks(Connection conn, List<Book> books) {
+        return false;
+    }
+}
@@ -0,0 +1,261 @@
+package utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes JSON straight to an OutputStream as UTF-8, without building strings
+ * or trees on the way.
+ *
+ * Note:
+ *      (1) the output goes through a fixed byte buffer, call {@link #flush}
+ *          at the end. the stream itself is not closed.
+ *      (2) commas are put in by the writer, callers only say where objects,
+ *          arrays & names begin. it does not check that the calls make
+ *          valid JSON, e.g. a name outside of an object.
+ *      (3) ints & longs are written digit by digit, NaN & infinite doubles
+ *          as null.
+ */
+public class JsonWriter {
+
+    private static final int MAX_DEPTH = 64;
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int count = 0;
+    /* whether the object or array at each depth already has an item, so the next one needs a comma */
+    private final boolean[] hasItem = new boolean[MAX_DEPTH];
+    private int depth = 0;
+    /* a name has just been written, its value needs no comma */
+    private boolean afterName = false;
+    private final byte[] digits = new byte[20];
+
+    public JsonWriter(OutputStream out) {
+        this(out, 8192);
+    }
+
+    public JsonWriter(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.buffer = new byte[Math.max(64, bufferSize)];
+    }
+
+    public JsonWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    public JsonWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    public JsonWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    public JsonWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    public JsonWriter name(String name) throws IOException {
+        separate();
+        string(name);
+        put(':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String s) throws IOException {
+        separate();
+        if (s == null) {
+            put(NULL);
+        } else {
+            string(s);
+        }
+        return this;
+    }
+
+    public JsonWriter value(boolean b) throws IOException {
+        separate();
+        put(b ? TRUE : FALSE);
+        return this;
+    }
+
+    public JsonWriter value(long n) throws IOException {
+        separate();
+        number(n);
+        return this;
+    }
+
+    public JsonWriter value(double d) throws IOException {
+        separate();
+        if (Double.isNaN(d) || Double.isInfinite(d)) {
+            put(NULL);
+        } else if (d == Math.rint(d) && Math.abs(d) < 1e15) {
+            number((long) d);
+        } else {
+            // Doubles are rare here (prices), the String is not worth avoiding
+            String s = Double.toString(d);
+            for (int i = 0; i < s.length(); i++) {
+                put(s.charAt(i));
+            }
+        }
+        return this;
+    }
+
+    public JsonWriter nullValue() throws IOException {
+        separate();
+        put(NULL);
+        return this;
+    }
+
+    /* shorthands for a name with its value */
+
+    public JsonWriter field(String name, String s) throws IOException {
+        return name(name).value(s);
+    }
+
+    public JsonWriter field(String name, long n) throws IOException {
+        return name(name).value(n);
+    }
+
+    public JsonWriter field(String name, double d) throws IOException {
+        return name(name).value(d);
+    }
+
+    public JsonWriter field(String name, boolean b) throws IOException {
+        return name(name).value(b);
+    }
+
+    public void flush() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+        out.flush();
+    }
+
+    private JsonWriter open(char c) throws IOException {
+        separate();
+        if (depth == MAX_DEPTH) {
+            throw new IllegalStateException("JSON nested too deep");
+        }
+        hasItem[depth++] = false;
+        put(c);
+        return this;
+    }
+
+    private JsonWriter close(char c) throws IOException {
+        depth--;
+        put(c);
+        return this;
+    }
+
+    private void separate() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (hasItem[depth - 1]) {
+                put(',');
+            }
+            hasItem[depth - 1] = true;
+        }
+    }
+
+    private void string(String s) throws IOException {
+        put('"');
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                    case '"':
+                    case '\\':
+                        put('\\');
+                        put(c);
+                        break;
+                    case '\n':
+                        put('\\');
+                        put('n');
+                        break;
+                    case '\r':
+                        put('\\');
+                        put('r');
+                        break;
+                    case '\t':
+                        put('\\');
+                        put('t');
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            put('\\');
+                            put('u');
+                            put('0');
+                            put('0');
+                            put(HEX[c >> 4]);
+                            put(HEX[c & 0xF]);
+                        } else {
+                            put(c);
+                        }
+                }
+            } else if (c < 0x800) {
+                put(0xC0 | (c >> 6));
+                put(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                put(0xF0 | (cp >> 18));
+                put(0x80 | ((cp >> 12) & 0x3F));
+                put(0x80 | ((cp >> 6) & 0x3F));
+                put(0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // A lone surrogate can not be encoded
+                put('?');
+            } else {
+                put(0xE0 | (c >> 12));
+                put(0x80 | ((c >> 6) & 0x3F));
+                put(0x80 | (c & 0x3F));
+            }
+        }
+        put('"');
+    }
+
+    private void number(long n) throws IOException {
+        if (n == Long.MIN_VALUE) {
+            String s = Long.toString(n);
+            for (int i = 0; i < s.length(); i++) {
+                put(s.charAt(i));
+            }
+            return;
+        }
+        if (n < 0) {
+            put('-');
+            n = -n;
+        }
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' + n % 10);
+            n /= 10;
+        } while (n > 0);
+        while (i < digits.length) {
+            put(digits[i++]);
+        }
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        for (byte b : bytes) {
+            put(b);
+        }
+    }
+
+    private void put(int b) throws IOException {
+        if (count == buffer.length) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+        buffer[count++] = (byte) b;
+    }
+}
@@ -1,5 +1,14 @@
 package utils;
 
+import com.mysql.cj.jdbc.JdbcStatement;
+import entities.Book;
+
+import java.io.ByteArrayInputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
 public class MysqlInitializer implements DBInitializer {
 
     @Override
@@ -58,4 +67,41 @@ public class MysqlInitializer implements DBInitializer {
                 "  foreign key (`book_id`) references `book`(`book_id`) on delete cascade on update cascade\n" +
                 ") engine=innodb charset=utf8mb4;";
     }
+
+    @Override
+    public String sqlCreateBorrowBookIndex() {
+        /* also serves the foreign key on book_id, innodb then drops its own index */
+        return "create index `idx_borrow_book_active` on `borrow` (`book_id`, `return_time`);";
+    }
+
+    @Override
+    public String sqlCreateBorrowCardIndex() {
+        return "create index `idx_borrow_card_active` on `borrow` (`card_id`, `return_time`);";
+    }
+
+    @Override
+    public String sqlCreateBorrowTimeIndex() {
+        return "create index `idx_borrow_card_time` on `borrow` (`card_id`, `borrow_time`);";
+    }
+
+    /**
+     * LOAD DATA LOCAL INFILE from a stream, needs allowLoadLocalInfile on the
+     * driver and local_infile=ON on the server. LOCAL skips duplicated rows
+     * instead of failing, so a load that stored fewer rows than given is
+     * reported as an error, the caller then rolls it back.
+     */
+    @Override
+    public boolean bulkLoadBooks(Connection conn, List<Book> books) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.unwrap(JdbcStatement.class).setLocalInfileInputStream(
+                    new ByteArrayInputStream(TabSeparated.encode(books)));
+            int loaded = stmt.executeUpdate("load data local infile 'books.tsv' into table `book` character set utf8mb4 " +
+                    "fields terminated by '\\t' escaped by '\\\\' lines terminated by '\\n' " +
+                    "(" + TabSeparated.COLUMNS + ")");
+            if (loaded != books.size()) {
+                throw new SQLException("Loaded " + loaded + " of " + books.size() + " books, the others already exist.");
+            }
+        }
+        return true;
+    }
 }
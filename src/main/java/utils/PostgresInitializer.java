@@ -0,0 +1,101 @@
+package utils;
+
+import entities.Book;
+import org.postgresql.PGConnection;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+public class PostgresInitializer implements DBInitializer {
+
+    @Override
+    public String sqlDropBook() {
+        return "drop table if exists book;";
+    }
+
+    @Override
+    public String sqlDropCard() {
+        return "drop table if exists card;";
+    }
+
+    @Override
+    public String sqlDropBorrow() {
+        return "drop table if exists borrow;";
+    }
+
+    @Override
+    public String sqlCreateBook() {
+        return "create table book (\n" +
+                "    book_id serial not null,\n" +
+                "    category varchar(63) not null,\n" +
+                "    title varchar(63) not null,\n" +
+                "    press varchar(63) not null,\n" +
+                "    publish_year int not null,\n" +
+                "    author varchar(63) not null,\n" +
+                "    price decimal(7, 2) not null default 0.00,\n" +
+                "    stock int not null default 0,\n" +
+                "    primary key (book_id),\n" +
+                "    unique (category, press, author, title, publish_year)\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlCreateCard() {
+        return "create table card (\n" +
+                "    card_id serial not null,\n" +
+                "    name varchar(63) not null,\n" +
+                "    department varchar(63) not null,\n" +
+                "    type char(1) not null,\n" +
+                "    primary key (card_id),\n" +
+                "    unique (department, type, name),\n" +
+                "    check ( type in ('T', 'S') )\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlCreateBorrow() {
+        return "create table borrow (\n" +
+                "    card_id int not null,\n" +
+                "    book_id int not null,\n" +
+                "    borrow_time bigint not null,\n" +
+                "    return_time bigint not null default 0,\n" +
+                "    primary key (card_id, book_id, borrow_time),\n" +
+                "    foreign key (card_id) references card(card_id) on delete cascade on update cascade,\n" +
+                "    foreign key (book_id) references book(book_id) on delete cascade on update cascade\n" +
+                ");";
+    }
+
+    /* partial indexes only hold unreturned borrows */
+    @Override
+    public String sqlCreateBorrowBookIndex() {
+        return "create index idx_borrow_book_active on borrow (book_id, card_id) where return_time = 0;";
+    }
+
+    @Override
+    public String sqlCreateBorrowCardIndex() {
+        return "create index idx_borrow_card_active on borrow (card_id, book_id) where return_time = 0;";
+    }
+
+    @Override
+    public String sqlCreateBorrowTimeIndex() {
+        return "create index idx_borrow_card_time on borrow (card_id, borrow_time desc, book_id);";
+    }
+
+    /**
+     * COPY FROM STDIN in text format, works for PostgreSQL & openGauss.
+     */
+    @Override
+    public boolean bulkLoadBooks(Connection conn, List<Book> books) throws SQLException {
+        try {
+            conn.unwrap(PGConnection.class).getCopyAPI().copyIn(
+                    "copy book (" + TabSeparated.COLUMNS + ") from stdin",
+                    new ByteArrayInputStream(TabSeparated.encode(books)));
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+        return true;
+    }
+}
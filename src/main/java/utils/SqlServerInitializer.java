@@ -1,5 +1,19 @@
 package utils;
 
+import com.microsoft.sqlserver.jdbc.ISQLServerBulkData;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopy;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopyOptions;
+import entities.Book;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
 public class SqlServerInitializer implements DBInitializer {
 
     @Override
@@ -58,4 +72,108 @@ public class SqlServerInitializer implements DBInitializer {
                 "    foreign key (book_id) references book(book_id) on delete cascade on update cascade\n" +
                 ");";
     }
+
+    /* filtered indexes only hold unreturned borrows, they stay small however long the history grows */
+    @Override
+    public String sqlCreateBorrowBookIndex() {
+        return "create index idx_borrow_book_active on borrow (book_id, card_id) " +
+                "include (borrow_time, return_time) where return_time = 0;";
+    }
+
+    @Override
+    public String sqlCreateBorrowCardIndex() {
+        return "create index idx_borrow_card_active on borrow (card_id, book_id) " +
+                "include (borrow_time, return_time) where return_time = 0;";
+    }
+
+    @Override
+    public String sqlCreateBorrowTimeIndex() {
+        return "create index idx_borrow_card_time on borrow (card_id, borrow_time desc, book_id);";
+    }
+
+    /**
+     * bulk copy API of the driver, it joins the open transaction of conn.
+     */
+    @Override
+    public boolean bulkLoadBooks(Connection conn, List<Book> books) throws SQLException {
+        SQLServerBulkCopy bulkCopy = new SQLServerBulkCopy(conn);
+        try {
+            SQLServerBulkCopyOptions options = new SQLServerBulkCopyOptions();
+            options.setBatchSize(0);
+            options.setCheckConstraints(true);
+            bulkCopy.setBulkCopyOptions(options);
+            bulkCopy.setDestinationTableName("dbo.book");
+            for (int column = 1; column <= BookRows.NAMES.length; column++) {
+                bulkCopy.addColumnMapping(column, BookRows.NAMES[column - 1]);
+            }
+            bulkCopy.writeToServer(new BookRows(books));
+        } finally {
+            bulkCopy.close();
+        }
+        return true;
+    }
+
+    /* the books as rows of (category, title, press, publish_year, author, price, stock) */
+    private static final class BookRows implements ISQLServerBulkData {
+        private static final long serialVersionUID = 1L;
+        private static final String[] NAMES = {"category", "title", "press", "publish_year", "author", "price", "stock"};
+        private static final int[] TYPES = {Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.INTEGER,
+                Types.VARCHAR, Types.DECIMAL, Types.INTEGER};
+
+        private final transient List<Book> books;
+        private int next = 0;
+
+        private BookRows(List<Book> books) {
+            this.books = books;
+        }
+
+        @Override
+        public Set<Integer> getColumnOrdinals() {
+            Set<Integer> ordinals = new LinkedHashSet<>();
+            for (int column = 1; column <= NAMES.length; column++) {
+                ordinals.add(column);
+            }
+            return ordinals;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return NAMES[column - 1];
+        }
+
+        @Override
+        public int getColumnType(int column) {
+            return TYPES[column - 1];
+        }
+
+        @Override
+        public int getPrecision(int column) {
+            switch (TYPES[column - 1]) {
+                case Types.VARCHAR:
+                    return 63;
+                case Types.DECIMAL:
+                    return 7;
+                default:
+                    return 10;
+            }
+        }
+
+        @Override
+        public int getScale(int column) {
+            return TYPES[column - 1] == Types.DECIMAL ? 2 : 0;
+        }
+
+        @Override
+        public boolean next() {
+            return ++next <= books.size();
+        }
+
+        @Override
+        public Object[] getRowData() {
+            Book book = books.get(next - 1);
+            return new Object[]{book.getCategory(), book.getTitle(), book.getPress(), book.getPublishYear(),
+                    book.getAuthor(), BigDecimal.valueOf(book.getPrice()).setScale(2, RoundingMode.HALF_UP),
+                    book.getStock()};
+        }
+    }
 }
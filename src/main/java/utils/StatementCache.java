@@ -0,0 +1,71 @@
+package utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of prepared statements for one connection, keyed by SQL text.
+ *
+ * Note:
+ *      (1) a connection is used by one thread at a time, so this class
+ *          is not thread safe.
+ *      (2) statements handed out by the cache must not be closed by
+ *          the caller, they are closed when evicted or when the cache
+ *          is closed.
+ */
+public class StatementCache {
+
+    private final Connection conn;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    public StatementCache(Connection conn, int capacity) {
+        this.conn = conn;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > capacity) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+        /* the same SQL prepared with & without generated keys are different statements */
+        String key = autoGeneratedKeys + ":" + sql;
+        PreparedStatement stmt = statements.get(key);
+        if (stmt == null || stmt.isClosed()) {
+            stmt = conn.prepareStatement(sql, autoGeneratedKeys);
+            statements.put(key, stmt);
+        } else {
+            /* start clean, a failed batch may have left rows behind */
+            stmt.clearParameters();
+            stmt.clearBatch();
+        }
+        return stmt;
+    }
+
+    public int size() {
+        return statements.size();
+    }
+
+    public void close() {
+        for (PreparedStatement stmt : statements.values()) {
+            closeQuietly(stmt);
+        }
+        statements.clear();
+    }
+
+    private static void closeQuietly(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
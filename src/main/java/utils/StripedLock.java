@@ -0,0 +1,75 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed table of locks, keys are spread over the stripes by hash.
+ *
+ * Note:
+ *      (1) two keys may share a stripe, so holding a stripe serializes
+ *          more than one key, but distinct keys on distinct stripes
+ *          never wait for each other.
+ *      (2) when several keys are locked at once, the stripes are always
+ *          taken in ascending index order, so two callers can not deadlock.
+ */
+public class StripedLock {
+
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    public StripedLock(int stripes) {
+        /* round up to a power of two, so that the stripe index is a mask */
+        int n = 1;
+        while (n < stripes) {
+            n <<= 1;
+        }
+        this.locks = new ReentrantLock[n];
+        for (int i = 0; i < n; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        this.mask = n - 1;
+    }
+
+    public Lock get(int key) {
+        return locks[indexOf(key)];
+    }
+
+    /**
+     * lock the stripes of all keys in ascending stripe order.
+     *
+     * @return the locked stripes, pass them to {@link #unlockAll(List)}
+     */
+    public List<Lock> lockAll(Collection<Integer> keys) {
+        TreeSet<Integer> indexes = new TreeSet<>();
+        for (int key : keys) {
+            indexes.add(indexOf(key));
+        }
+        List<Lock> locked = new ArrayList<>(indexes.size());
+        for (int index : indexes) {
+            locks[index].lock();
+            locked.add(locks[index]);
+        }
+        return locked;
+    }
+
+    public void unlockAll(List<Lock> locked) {
+        for (int i = locked.size() - 1; i >= 0; i--) {
+            locked.get(i).unlock();
+        }
+    }
+
+    public int getStripes() {
+        return locks.length;
+    }
+
+    private int indexOf(int key) {
+        /* spread the bits, ids are often sequential */
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,59 @@
+package utils;
+
+import entities.Book;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Books in the tab separated text format read by MySQL LOAD DATA and
+ * PostgreSQL COPY: one line per book, tab, line breaks & backslash
+ * escaped with a backslash.
+ */
+final class TabSeparated {
+
+    /* the columns in the order they are written */
+    static final String COLUMNS = "category, title, press, publish_year, author, price, stock";
+
+    private TabSeparated() {
+    }
+
+    static byte[] encode(List<Book> books) {
+        StringBuilder sb = new StringBuilder(books.size() * 128);
+        for (Book book : books) {
+            appendEscaped(sb, book.getCategory()).append('\t');
+            appendEscaped(sb, book.getTitle()).append('\t');
+            appendEscaped(sb, book.getPress()).append('\t');
+            sb.append(book.getPublishYear()).append('\t');
+            appendEscaped(sb, book.getAuthor()).append('\t');
+            sb.append(BigDecimal.valueOf(book.getPrice()).setScale(2, RoundingMode.HALF_UP).toPlainString()).append('\t');
+            sb.append(book.getStock()).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static StringBuilder appendEscaped(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb;
+    }
+}
@@ -0,0 +1,53 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A version counter per table, bumped by every change made through the library.
+ *
+ * Note:
+ *      (1) a reader takes the version before it reads the table, a writer bumps
+ *          it after the commit. so the version of what a reader got is never
+ *          newer than what it read, at worst the next read is not needed.
+ *      (2) changes made by other processes, or straight to the database, are
+ *          not seen.
+ *      (3) ETags carry the start time of the process, so a restarted server
+ *          never matches an ETag handed out before.
+ */
+public class TableVersions {
+
+    public enum Table {
+        BOOK, CARD, BORROW
+    }
+
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLongArray versions = new AtomicLongArray(Table.values().length);
+
+    /**
+     * call it after the change has been committed.
+     */
+    public void changed(Table table) {
+        versions.incrementAndGet(table.ordinal());
+    }
+
+    public void changedAll() {
+        for (Table table : Table.values()) {
+            changed(table);
+        }
+    }
+
+    public long get(Table table) {
+        return versions.get(table.ordinal());
+    }
+
+    /**
+     * @return a strong ETag, quoted, of what is read from the tables
+     */
+    public String etag(Table... tables) {
+        StringBuilder sb = new StringBuilder("\"").append(epoch);
+        for (Table table : tables) {
+            sb.append('-').append(Long.toString(get(table), 36));
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -33,4 +33,8 @@ create table borrow (
     primary key (card_id, book_id, borrow_time),
     foreign key (card_id) references card(card_id) on delete cascade on update cascade,
     foreign key (book_id) references book(book_id) on delete cascade on update cascade
-);
\ No newline at end of file
+);
+
+create index idx_borrow_book_active on borrow (book_id, card_id) include (borrow_time, return_time) where return_time = 0;
+create index idx_borrow_card_active on borrow (card_id, book_id) include (borrow_time, return_time) where return_time = 0;
+create index idx_borrow_card_time on borrow (card_id, borrow_time desc, book_id);
@@ -24,9 +24,14 @@ public class BorrowThread extends Thread {
         try {
             System.out.printf("Thread %d begin to wait signal\n", id);
             semaphore.acquire();
-            System.out.printf("Thread %d start to borrow book\n", id);
-            if (library.borrowBook(borrow).ok) {
-                successOps.incrementAndGet();
+            try {
+                System.out.printf("Thread %d start to borrow book\n", id);
+                if (library.borrowBook(borrow).ok) {
+                    successOps.incrementAndGet();
+                }
+            } finally {
+                /* give the permit back, so the next test can start its threads again */
+                semaphore.release();
             }
         } catch (InterruptedException e) {
             e.printStackTrace();
@@ -34,6 +39,7 @@ public class BorrowThread extends Thread {
     }
 
     public static void acquireAll() {
+        successOps.set(0);
         try {
             semaphore.acquire(nThreads);
         } catch (InterruptedException e) {
@@ -6,44 +6,102 @@ import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.junit.After;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
 import queries.*;
+import utils.BookCache;
+import utils.BookQueryCache;
+import utils.BookTextIndex;
+import utils.CardCache;
 import utils.ConnectConfig;
 import utils.DatabaseConnector;
+import utils.DatabaseType;
+import utils.Json;
 import utils.RandomData;
+import utils.StripedLock;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.Normalizer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+@RunWith(Parameterized.class)
 public class LibraryTest {
 
-    private DatabaseConnector connector;
-    private LibraryManagementSystem library;
+    private final DatabaseConnector connector;
+    private final LibraryManagementSystem library;
+    private final ConnectConfig connectConfig;
 
-    private static ConnectConfig connectConfig = null;
-
-    static {
+    /**
+     * every test runs against the in-memory engine & the JDBC engine. the JDBC
+     * engine uses the database of "resources/application.yaml", or an embedded
+     * H2 database if the configured type is memory.
+     */
+    @Parameters(name = "{0}")
+    public static Collection<Object[]> engines() {
+        List<Object[]> engines = new ArrayList<>();
         try {
             // parse connection config from "resources/application.yaml"
-            connectConfig = new ConnectConfig();
+            Map<String, Object> objectMap = ConnectConfig.load();
+            ConnectConfig configured = new ConnectConfig(objectMap);
+            Map<String, Object> memory = new HashMap<>(objectMap);
+            memory.put("type", DatabaseType.MEMORY.getTypeName());
+            engines.add(new Object[]{DatabaseType.MEMORY.getTypeName(), new ConnectConfig(memory)});
+            if (configured.getType().isInMemory()) {
+                Map<String, Object> h2 = new HashMap<>(objectMap);
+                h2.put("type", DatabaseType.H2.getTypeName());
+                configured = new ConnectConfig(h2);
+            }
+            engines.add(new Object[]{configured.getType().getTypeName(), configured});
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
         }
+        return engines;
     }
 
-    public LibraryTest() {
-        try {
-            // connect to database
-            connector = new DatabaseConnector(connectConfig);
-            library = new LibraryManagementSystemImpl(connector);
-            System.out.println("Successfully init class BookTest.");
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
+    public LibraryTest(String engine, ConnectConfig connectConfig) {
+        this.connectConfig = connectConfig;
+        // connect to database
+        connector = new DatabaseConnector(connectConfig);
+        library = connectConfig.getType().isInMemory()
+                ? new InMemoryLibraryManagementSystemImpl(connectConfig.getLockStripes())
+                : new LibraryManagementSystemImpl(connector);
+        System.out.println("Successfully init class BookTest on " + engine + ".");
     }
 
     @Before
@@ -69,6 +127,24 @@ public class LibraryTest {
         }
     }
 
+    @Test
+    public void reconnectLeaseTest() throws SQLException {
+        Assume.assumeFalse(connectConfig.getType().isInMemory());
+        /* a connection leased before a reconnect is closed when it is given back, not lost */
+        Connection conn = connector.getConn();
+        Assert.assertTrue(connector.release());
+        Assert.assertTrue(connector.connect());
+        int total = connector.getPool().getTotalSize();
+        connector.releaseConn(conn);
+        Assert.assertTrue(conn.isClosed());
+        Assert.assertEquals(total, connector.getPool().getTotalSize());
+        Assert.assertEquals(0, connector.getPool().getLeasedSize());
+        /* the new pool works as before */
+        conn = connector.getConn();
+        connector.releaseConn(conn);
+        Assert.assertFalse(conn.isClosed());
+    }
+
     @Test
     public void bookRegisterTest() {
         Book b0 = new Book("Computer Science", "Database System Concepts",
@@ -258,6 +334,135 @@ public class LibraryTest {
         }
     }
 
+    @Test
+    public void storeBookBatchTest() {
+        /* more books than one JDBC batch & one key lookup hold */
+        int nBooks = connectConfig.getBatchSize() * 2 + 500;
+        Set<Book> bookSet = new HashSet<>();
+        while (bookSet.size() < nBooks + 1) {
+            bookSet.add(RandomData.randomBook());
+        }
+        List<Book> books = new ArrayList<>(bookSet);
+        Book stored = books.remove(books.size() - 1);
+        Assert.assertTrue(library.storeBook(stored).ok);
+        /* a batch that holds one stored book, past the first key lookup, is refused as a whole */
+        List<Book> partial = new ArrayList<>(books.subList(0, 600));
+        partial.add(300, stored.clone());
+        Assert.assertFalse(library.storeBook(partial).ok);
+        Assert.assertEquals(1, ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getCount());
+        /* every book gets the book_id of its own row */
+        Assert.assertTrue(library.storeBook(books).ok);
+        Map<Integer, Book> rows = new HashMap<>();
+        for (Book book : ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getResults()) {
+            rows.put(book.getBookId(), book);
+        }
+        Assert.assertEquals(nBooks + 1, rows.size());
+        Set<Integer> ids = new HashSet<>();
+        for (Book book : books) {
+            Assert.assertTrue(ids.add(book.getBookId()));
+            Assert.assertEquals(book.toString(), rows.get(book.getBookId()).toString());
+        }
+        Assert.assertFalse(ids.contains(stored.getBookId()));
+    }
+
+    @Test
+    public void storeBookWithoutKeysTest() {
+        Assume.assumeFalse(connectConfig.getType().isInMemory());
+        /* a driver that returns no generated keys, the books are looked up by their keys instead */
+        DatabaseConnector noKeys = new DatabaseConnector(connectConfig) {
+            @Override
+            public PreparedStatement prepare(Connection conn, String sql, int autoGeneratedKeys) throws SQLException {
+                PreparedStatement stmt = super.prepare(conn, sql, autoGeneratedKeys);
+                if (autoGeneratedKeys != Statement.RETURN_GENERATED_KEYS) {
+                    return stmt;
+                }
+                return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                        new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                            if (method.getName().equals("getGeneratedKeys")) {
+                                return emptyResultSet();
+                            }
+                            try {
+                                return method.invoke(stmt, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        });
+            }
+        };
+        Assert.assertTrue(noKeys.connect());
+        try {
+            LibraryManagementSystem keyless = new LibraryManagementSystemImpl(noKeys);
+            Set<Book> bookSet = new HashSet<>();
+            while (bookSet.size() < 600) {
+                bookSet.add(RandomData.randomBook());
+            }
+            List<Book> books = new ArrayList<>(bookSet);
+            Assert.assertTrue(keyless.storeBook(books).ok);
+            Map<Integer, Book> rows = new HashMap<>();
+            for (Book book : ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getResults()) {
+                rows.put(book.getBookId(), book);
+            }
+            Assert.assertEquals(books.size(), rows.size());
+            for (Book book : books) {
+                Assert.assertEquals(book.toString(), rows.get(book.getBookId()).toString());
+            }
+        } finally {
+            noKeys.release();
+        }
+    }
+
+    @Test
+    public void bulkLoadBooksTest() throws SQLException {
+        Assume.assumeFalse(connectConfig.getType().isInMemory());
+        Set<Book> bookSet = new HashSet<>();
+        while (bookSet.size() < 600) {
+            bookSet.add(RandomData.randomBook());
+        }
+        List<Book> books = new ArrayList<>(bookSet);
+        Connection conn = connector.getConn();
+        try {
+            /* the native path of the DBMS, skipped if the DBMS has none or refuses it here */
+            boolean loaded = false;
+            try {
+                loaded = connectConfig.getType().getDbInitializer().bulkLoadBooks(conn, books.subList(0, 500));
+            } catch (SQLException e) {
+                Assume.assumeNoException(e);
+            }
+            Assume.assumeTrue(loaded);
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM book")) {
+                Assert.assertTrue(rs.next());
+                Assert.assertEquals(500, rs.getInt(1));
+            }
+            /* a load that holds a stored book must fail, not skip it */
+            List<Book> partial = new ArrayList<>(books.subList(500, 600));
+            partial.add(50, books.get(0).clone());
+            try {
+                connectConfig.getType().getDbInitializer().bulkLoadBooks(conn, partial);
+                Assert.fail();
+            } catch (SQLException e) {
+                // Expected
+            }
+        } finally {
+            conn.rollback();
+            connector.releaseConn(conn);
+        }
+    }
+
+    private static ResultSet emptyResultSet() {
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "next":
+                            return false;
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
     @Test
     public void removeBookTest() {
         /* simply insert some data to database */
@@ -444,6 +649,261 @@ public class LibraryTest {
         }
     }
 
+    @Test
+    public void queryBookCaseTest() {
+        Book book = RandomData.randomBook();
+        book.setTitle("Case Study In Collation");
+        book.setPress("Mixed Case Press");
+        book.setAuthor("McCase");
+        Assert.assertTrue(library.storeBook(book).ok);
+        /* like the collation of the database, the conditions ignore case */
+        BookQueryConditions conditions = new BookQueryConditions();
+        conditions.setTitle("case study");
+        conditions.setPress("MIXED");
+        conditions.setAuthor("mccase");
+        ApiResult queryResult = library.queryBook(conditions);
+        Assert.assertTrue(queryResult.ok);
+        BookQueryResults bookResults = (BookQueryResults) queryResult.payload;
+        Assert.assertEquals(1, bookResults.getCount());
+        Assert.assertEquals(book.getBookId(), bookResults.getResults().get(0).getBookId());
+    }
+
+    @Test
+    public void queryBookPageTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 300, 0, 0);
+        for (int i = 0; i < 20; i++) {
+            BookQueryConditions conditions = new BookQueryConditions();
+            conditions.setSortBy(Book.SortColumn.random());
+            conditions.setSortOrder(SortOrder.random());
+            if (RandomUtils.nextBoolean()) {
+                conditions.setCategory(RandomData.randomCategory());
+            }
+            ApiResult fullResult = library.queryBook(conditions);
+            Assert.assertTrue(fullResult.ok);
+            List<Book> expected = ((BookQueryResults) fullResult.payload).getResults();
+            Assert.assertNull(((BookQueryResults) fullResult.payload).getNextPageToken());
+            /* walk through all pages, they should add up to the full result */
+            int pageSize = RandomUtils.nextInt(1, 50);
+            conditions.setPageSize(pageSize);
+            List<Book> paged = new ArrayList<>();
+            do {
+                ApiResult pageResult = library.queryBook(conditions);
+                Assert.assertTrue(pageResult.ok);
+                BookQueryResults page = (BookQueryResults) pageResult.payload;
+                Assert.assertTrue(page.getCount() <= pageSize);
+                paged.addAll(page.getResults());
+                conditions.setPageToken(page.getNextPageToken());
+            } while (conditions.getPageToken() != null);
+            Assert.assertEquals(expected.size(), paged.size());
+            for (int k = 0; k < expected.size(); k++) {
+                Assert.assertEquals(expected.get(k).toString(), paged.get(k).toString());
+            }
+        }
+        /* a token is only valid for the sort order it was made for */
+        BookQueryConditions conditions = new BookQueryConditions();
+        conditions.setPageSize(10);
+        String token = ((BookQueryResults) library.queryBook(conditions).payload).getNextPageToken();
+        Assert.assertNotNull(token);
+        conditions.setSortBy(Book.SortColumn.PRICE);
+        conditions.setPageToken(token);
+        Assert.assertFalse(library.queryBook(conditions).ok);
+    }
+
+    @Test
+    public void queryBookStreamTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 300, 0, 0);
+        for (int i = 0; i < 10; i++) {
+            BookQueryConditions conditions = new BookQueryConditions();
+            conditions.setSortBy(Book.SortColumn.random());
+            conditions.setSortOrder(SortOrder.random());
+            if (RandomUtils.nextBoolean()) {
+                conditions.setCategory(RandomData.randomCategory());
+            }
+            ApiResult listResult = library.queryBook(conditions);
+            Assert.assertTrue(listResult.ok);
+            List<Book> expected = ((BookQueryResults) listResult.payload).getResults();
+            /* the stream should deliver the same books in the same order */
+            List<Book> streamed = new ArrayList<>();
+            ApiResult streamResult = library.queryBook(conditions, streamed::add);
+            Assert.assertTrue(streamResult.ok);
+            Assert.assertEquals(expected.size(), (int) (Integer) streamResult.payload);
+            Assert.assertEquals(expected.size(), streamed.size());
+            for (int k = 0; k < expected.size(); k++) {
+                Assert.assertEquals(expected.get(k).toString(), streamed.get(k).toString());
+            }
+            /* page size works as a limit */
+            int limit = RandomUtils.nextInt(1, 50);
+            conditions.setPageSize(limit);
+            streamed.clear();
+            Assert.assertTrue(library.queryBook(conditions, streamed::add).ok);
+            Assert.assertEquals(Math.min(limit, expected.size()), streamed.size());
+        }
+    }
+
+    @Test
+    public void queryBookCacheTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 50, 1, 0);
+        Book book = my.books.get(0);
+        BookQueryConditions conditions = new BookQueryConditions();
+        conditions.setCategory(book.getCategory());
+        /* repeat the query, every change of the book should show up */
+        Assert.assertTrue(library.queryBook(conditions).ok);
+        Assert.assertTrue(library.incBookStock(book.getBookId(), 3).ok);
+        Assert.assertEquals(book.getStock() + 3, findBook(conditions, book.getBookId()).getStock());
+        Borrow borrow = new Borrow(book.getBookId(), my.cards.get(0).getCardId());
+        borrow.resetBorrowTime();
+        Assert.assertTrue(library.borrowBook(borrow).ok);
+        Assert.assertEquals(book.getStock() + 2, findBook(conditions, book.getBookId()).getStock());
+        book.setPrice(book.getPrice() + 1);
+        Assert.assertTrue(library.modifyBookInfo(book).ok);
+        Assert.assertEquals(book.getPrice(), findBook(conditions, book.getBookId()).getPrice(), 1e-6);
+        Book added = new Book(book.getCategory(), "Cache Test", "Cache Press", 2000, "Cache Author", 10.0, 1);
+        Assert.assertTrue(library.storeBook(added).ok);
+        Assert.assertNotNull(findBook(conditions, added.getBookId()));
+        Assert.assertTrue(library.removeBook(added.getBookId()).ok);
+        Assert.assertNull(findBook(conditions, added.getBookId()));
+    }
+
+    private Book findBook(BookQueryConditions conditions, int bookId) {
+        ApiResult result = library.queryBook(conditions);
+        Assert.assertTrue(result.ok);
+        for (Book book : ((BookQueryResults) result.payload).getResults()) {
+            if (book.getBookId() == bookId) {
+                return book;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void textIndexTest() {
+        BookTextIndex index = new BookTextIndex();
+        List<Book> books = new ArrayList<>();
+        for (int i = 1; i <= 2000; i++) {
+            Book book = RandomData.randomBook();
+            book.setBookId(i);
+            books.add(book);
+        }
+        Book accented = RandomData.randomBook();
+        accented.setBookId(2001);
+        accented.setTitle("Les Mis\u00e9rables");
+        books.add(accented);
+        for (Book book : books) {
+            index.add(book);
+        }
+        /* fragments of titles in other cases, wildcards, accents, short & very common conditions */
+        List<BookQueryConditions> queries = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            String title = books.get(RandomUtils.nextInt(0, books.size())).getTitle();
+            int from = RandomUtils.nextInt(0, Math.max(1, title.length() - 3));
+            String part = title.substring(from, Math.min(title.length(), from + RandomUtils.nextInt(3, 8)));
+            BookQueryConditions conditions = new BookQueryConditions();
+            conditions.setTitle(i % 2 == 0 ? part.toUpperCase() : part);
+            if (i % 5 == 0) {
+                conditions.setAuthor(RandomData.randomAuthor());
+            }
+            queries.add(conditions);
+        }
+        for (String title : Arrays.asList("MISERABLES", "mis%bles", "Les_Mis", "zzzz")) {
+            BookQueryConditions conditions = new BookQueryConditions();
+            conditions.setTitle(title);
+            queries.add(conditions);
+        }
+        BookQueryConditions common = new BookQueryConditions();
+        common.setPress("Press");
+        queries.add(common);
+        BookQueryConditions tooShort = new BookQueryConditions();
+        tooShort.setAuthor("o");
+        queries.add(tooShort);
+        /* the candidates must hold every book the LIKE of the database matches */
+        for (BookQueryConditions conditions : queries) {
+            Set<Integer> candidates = index.candidates(conditions);
+            if (candidates == null) {
+                continue;
+            }
+            for (Book book : books) {
+                if (like(book.getTitle(), conditions.getTitle()) && like(book.getPress(), conditions.getPress())
+                        && like(book.getAuthor(), conditions.getAuthor())) {
+                    Assert.assertTrue(conditions + " misses " + book, candidates.contains(book.getBookId()));
+                }
+            }
+        }
+        BookQueryConditions plain = new BookQueryConditions();
+        plain.setTitle("MISERABLES");
+        Assert.assertTrue(index.candidates(plain).contains(accented.getBookId()));
+        /* too many candidates for an IN list, the LIKE scan is used then */
+        Assert.assertTrue(index.candidates(common).size() > 512);
+        Assert.assertNull(index.candidates(tooShort));
+    }
+
+    /* LIKE '%condition%' under a case & accent insensitive collation, a null condition matches all */
+    private static boolean like(String text, String condition) {
+        if (condition == null) {
+            return true;
+        }
+        StringBuilder regex = new StringBuilder(".*");
+        for (char c : foldCase(condition).toCharArray()) {
+            regex.append(c == '%' ? ".*" : c == '_' ? "." : Pattern.quote(String.valueOf(c)));
+        }
+        return foldCase(text).matches(regex.append(".*").toString());
+    }
+
+    private static String foldCase(String s) {
+        return Normalizer.normalize(s, Normalizer.Form.NFD)
+                .replaceAll("\\p{M}+", "").toLowerCase(Locale.ROOT);
+    }
+
+    @Test
+    public void queryCacheAccentTest() {
+        BookQueryCache cache = new BookQueryCache(16, 60000);
+        BookQueryConditions conditions = new BookQueryConditions();
+        conditions.setTitle("cafe");
+        cache.put(conditions, new BookQueryResults(new ArrayList<>()), cache.generation());
+        Assert.assertNotNull(cache.get(conditions));
+        /* the collation of the database matches the new title, so must the cache */
+        Book book = RandomData.randomBook();
+        book.setBookId(1);
+        book.setTitle("Le Caf\u00c9 de Flore");
+        cache.invalidate(book);
+        Assert.assertNull(cache.get(conditions));
+    }
+
+    @Test
+    public void importCatalogTest() throws Exception {
+        MyLibrary my = MyLibrary.createLibrary(library, 10, 0, 0);
+        Book existing = my.books.get(0);
+        StringBuilder csv = new StringBuilder("category,title,press,publish_year,author,price,stock\r\n");
+        for (int i = 0; i < 20; i++) {
+            csv.append("Import,Title ").append(i).append(",Press,2000,Author,").append(i).append(".5,3\r\n");
+        }
+        csv.append("Import,\"Quoted, \"\"title\"\"\",Press,2001,Author,9.9,1\n");
+        csv.append('\n');
+        /* bad rows: missing field, bad number, duplicate in the file, existing book */
+        csv.append("Import,Short,Press,2000,Author,1.0\n");
+        csv.append("Import,Bad year,Press,20x0,Author,1.0,1\n");
+        csv.append("Import,Title 3,Press,2000,Author,1.0,1\n");
+        csv.append(existing.getCategory()).append(',').append(existing.getTitle()).append(',')
+                .append(existing.getPress()).append(',').append(existing.getPublishYear()).append(',')
+                .append(existing.getAuthor()).append(",1.0,1");
+        Path path = Files.createTempFile("catalog", ".csv");
+        try {
+            Files.write(path, csv.toString().getBytes(StandardCharsets.UTF_8));
+            ApiResult result = new CatalogImporter(library, 4, 2, 2).importFile(path, ',', true);
+            Assert.assertTrue(result.ok);
+            ImportReport report = (ImportReport) result.payload;
+            Assert.assertEquals(25, report.getRowCount());
+            Assert.assertEquals(21, report.getStoredCount());
+            Assert.assertEquals(4, report.getRejectedCount());
+        } finally {
+            Files.delete(path);
+        }
+        BookQueryConditions conditions = new BookQueryConditions();
+        conditions.setCategory("Import");
+        List<Book> books = ((BookQueryResults) library.queryBook(conditions).payload).getResults();
+        Assert.assertEquals(21, books.size());
+        Assert.assertTrue(books.stream().anyMatch(b -> b.getTitle().equals("Quoted, \"title\"")));
+    }
+
     @Test
     public void borrowAndReturnBookTest() {
         /* insert some books & cards & borrow histories to database */
@@ -584,6 +1044,517 @@ public class LibraryTest {
         }
     }
 
+    @Test
+    public void borrowHistoryPageTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 50, 5, 300);
+        for (Card card : my.cards) {
+            ApiResult fullResult = library.showBorrowHistory(card.getCardId());
+            Assert.assertTrue(fullResult.ok);
+            List<BorrowHistories.Item> full = ((BorrowHistories) fullResult.payload).getItems();
+            Assert.assertFalse(full.isEmpty());
+            /* a random borrow_time range out of the history */
+            long t1 = full.get(RandomUtils.nextInt(0, full.size())).getBorrowTime();
+            long t2 = full.get(RandomUtils.nextInt(0, full.size())).getBorrowTime();
+            BorrowHistoryConditions conditions = new BorrowHistoryConditions(card.getCardId());
+            conditions.setMinBorrowTime(Math.min(t1, t2));
+            conditions.setMaxBorrowTime(Math.max(t1, t2));
+            List<BorrowHistories.Item> expected = full.stream()
+                    .filter(i -> i.getBorrowTime() >= Math.min(t1, t2) && i.getBorrowTime() <= Math.max(t1, t2))
+                    .collect(Collectors.toList());
+            /* walk through all pages, they should add up to the slice */
+            int pageSize = RandomUtils.nextInt(1, 20);
+            conditions.setPageSize(pageSize);
+            List<BorrowHistories.Item> paged = new ArrayList<>();
+            do {
+                ApiResult pageResult = library.showBorrowHistory(conditions);
+                Assert.assertTrue(pageResult.ok);
+                BorrowHistories page = (BorrowHistories) pageResult.payload;
+                Assert.assertTrue(page.getCount() <= pageSize);
+                paged.addAll(page.getItems());
+                conditions.setPageToken(page.getNextPageToken());
+            } while (conditions.getPageToken() != null);
+            Assert.assertEquals(expected.size(), paged.size());
+            for (int k = 0; k < expected.size(); k++) {
+                Assert.assertEquals(expected.get(k).toString(), paged.get(k).toString());
+            }
+        }
+    }
+
+    @Test
+    public void pageSizeBoundsTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 20, 1, 10);
+        BookQueryConditions bookConditions = new BookQueryConditions();
+        bookConditions.setPageSize(0);
+        Assert.assertFalse(library.queryBook(bookConditions).ok);
+        /* the largest page size must not overflow */
+        bookConditions.setPageSize(Integer.MAX_VALUE);
+        ApiResult result = library.queryBook(bookConditions);
+        Assert.assertTrue(result.ok);
+        Assert.assertEquals(my.nBooks(), ((BookQueryResults) result.payload).getCount());
+        Assert.assertNull(((BookQueryResults) result.payload).getNextPageToken());
+        BorrowHistoryConditions borrowConditions = new BorrowHistoryConditions(my.cards.get(0).getCardId());
+        borrowConditions.setPageSize(-1);
+        Assert.assertFalse(library.showBorrowHistory(borrowConditions).ok);
+        borrowConditions.setPageSize(Integer.MAX_VALUE);
+        result = library.showBorrowHistory(borrowConditions);
+        Assert.assertTrue(result.ok);
+        Assert.assertEquals(my.nBorrows(), ((BorrowHistories) result.payload).getCount());
+        Assert.assertNull(((BorrowHistories) result.payload).getNextPageToken());
+    }
+
+    @Test
+    public void borrowHistoryBookInfoTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 5, 1, 20);
+        int cardId = my.cards.get(0).getCardId();
+        /* read twice, the second time the book info may come from a cache */
+        Assert.assertTrue(library.showBorrowHistory(cardId).ok);
+        ApiResult result = library.showBorrowHistory(cardId);
+        Assert.assertTrue(result.ok);
+        BorrowHistories.Item item = ((BorrowHistories) result.payload).getItems().get(0);
+        Book book = my.books.stream().filter(b -> b.getBookId() == item.getBookId()).findFirst().get();
+        Assert.assertEquals(book.getTitle(), item.getTitle());
+        /* a modified book should show its new info */
+        book.setTitle(book.getTitle() + " (2nd edition)");
+        Assert.assertTrue(library.modifyBookInfo(book).ok);
+        result = library.showBorrowHistory(cardId);
+        Assert.assertTrue(result.ok);
+        for (BorrowHistories.Item i : ((BorrowHistories) result.payload).getItems()) {
+            if (i.getBookId() == book.getBookId()) {
+                Assert.assertEquals(book.getTitle(), i.getTitle());
+            }
+        }
+    }
+
+    @Test
+    public void bookCacheTtlTest() throws InterruptedException {
+        Book book = RandomData.randomBook();
+        book.setBookId(1);
+        BookCache cache = new BookCache(16, 50);
+        cache.put(book, cache.generation());
+        Book cached = cache.get(1);
+        Assert.assertNotNull(cached);
+        Assert.assertEquals(book.getTitle(), cached.getTitle());
+        Assert.assertEquals(0, cached.getStock());
+        /* info older than the ttl may have been modified by another process */
+        Thread.sleep(100);
+        Assert.assertNull(cache.get(1));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void unknownCardBorrowTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 2, 2, 0);
+        int unknownId = my.cards.stream().mapToInt(Card::getCardId).max().getAsInt() + 1000;
+        Borrow unknown = new Borrow(my.books.get(0).getBookId(), unknownId);
+        unknown.resetBorrowTime();
+        Assert.assertFalse(library.borrowBook(unknown).ok);
+        /* a card registered after the first borrow should be known at once */
+        Card card = new Card(0, "Newcomer", "Cache", Card.CardType.Student);
+        Assert.assertTrue(library.registerCard(card).ok);
+        Borrow borrow = new Borrow(my.books.get(0).getBookId(), card.getCardId());
+        borrow.resetBorrowTime();
+        Assert.assertTrue(library.borrowBook(borrow).ok);
+        /* a batch with an unknown card still borrows for the others */
+        Borrow other = new Borrow(my.books.get(1).getBookId(), card.getCardId());
+        other.resetBorrowTime();
+        ApiResult result = library.borrowBooks(Arrays.asList(unknown, other));
+        Assert.assertTrue(result.ok);
+        List<ApiResult> results = ((BatchResults) result.payload).getResults();
+        Assert.assertFalse(results.get(0).ok);
+        Assert.assertTrue(results.get(1).ok);
+    }
+
+    @Test
+    public void cardCacheFillTest() {
+        /* a card registered while the cache is filled, the fill read the card table before its commit */
+        CardCache cache = new CardCache(16);
+        cache.register(7);
+        Assert.assertFalse(cache.isReady());
+        cache.fill(CardCache.newFilter(0));
+        cache.registered(7);
+        Assert.assertTrue(cache.mayExist(7));
+    }
+
+    @Test
+    public void httpApiTest() throws Exception {
+        MyLibrary my = MyLibrary.createLibrary(library, 10, 3, 10);
+        HttpApiServer server = new HttpApiServer(library, 0, 2, 16);
+        server.start();
+        try {
+            int port = server.getPort();
+            /* the calls of the frontend */
+            Pair<Integer, String> reply = http(port, "POST", "/card",
+                    "{\"name\": \"Zhang San\", \"department\": \"CS\", \"type\": \"\u5b66\u751f\"}");
+            Assert.assertEquals(200, (int) reply.getLeft());
+            reply = http(port, "GET", "/card", null);
+            Assert.assertEquals(200, (int) reply.getLeft());
+            List<?> cards = (List<?>) Json.parse(reply.getRight());
+            Assert.assertEquals(my.nCards() + 1, cards.size());
+            Assert.assertTrue(reply.getRight().contains("\"name\":\"Zhang San\""));
+            int cardId = my.cards.get(0).getCardId();
+            reply = http(port, "GET", "/borrow?cardID=" + cardId, null);
+            Assert.assertEquals(200, (int) reply.getLeft());
+            List<?> borrows = (List<?>) Json.parse(reply.getRight());
+            Assert.assertEquals(((BorrowHistories) library.showBorrowHistory(cardId).payload).getCount(),
+                    borrows.size());
+            /* refused operations, malformed requests & unknown routes */
+            Book book = my.books.get(0);
+            reply = http(port, "POST", "/book/stock", "{\"id\": " + book.getBookId() + ", \"delta\": -100000}");
+            Assert.assertEquals(400, (int) reply.getLeft());
+            Assert.assertEquals(400, (int) http(port, "POST", "/card", "{\"name\": ").getLeft());
+            Assert.assertEquals(404, (int) http(port, "GET", "/nothing", null).getLeft());
+            /* a book round trip */
+            reply = http(port, "GET", "/book?category=" + URLEncoder.encode(book.getCategory(), "UTF-8") + "&pageSize=100", null);
+            Assert.assertEquals(200, (int) reply.getLeft());
+            Assert.assertTrue(reply.getRight().contains("\"id\":" + book.getBookId() + ","));
+            /* a body nested too deep for the parser */
+            StringBuilder deep = new StringBuilder();
+            for (int i = 0; i < 100000; i++) {
+                deep.append('[');
+            }
+            Assert.assertEquals(400, (int) http(port, "POST", "/borrow", deep.toString()).getLeft());
+            /* no reset & no CORS unless they are configured */
+            Assert.assertEquals(404, (int) http(port, "POST", "/reset", null).getLeft());
+            Assert.assertNull(header(port, "/card", "Access-Control-Allow-Origin"));
+            server.setCorsOrigin("http://localhost:5173");
+            Assert.assertEquals("http://localhost:5173", header(port, "/card", "Access-Control-Allow-Origin"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void httpShedTest() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        LibraryManagementSystem slow = (LibraryManagementSystem) Proxy.newProxyInstance(
+                LibraryManagementSystem.class.getClassLoader(), new Class<?>[]{LibraryManagementSystem.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("showCards")) {
+                        entered.countDown();
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+                    try {
+                        return method.invoke(library, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        /* one worker & room for one more request */
+        HttpApiServer server = new HttpApiServer(slow, 0, 1, 1);
+        server.start();
+        ExecutorService clients = Executors.newFixedThreadPool(3);
+        try {
+            int port = server.getPort();
+            Future<Pair<Integer, String>> busy = clients.submit(() -> http(port, "GET", "/card", null));
+            Assert.assertTrue(entered.await(10, TimeUnit.SECONDS));
+            Future<Pair<Integer, String>> second = clients.submit(() -> http(port, "GET", "/card", null));
+            Future<Pair<Integer, String>> third = clients.submit(() -> http(port, "GET", "/card", null));
+            /* one of them waits in the queue, the other is answered 503 while the worker is still busy */
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!second.isDone() && !third.isDone() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Future<Pair<Integer, String>> shed = second.isDone() ? second : third;
+            Future<Pair<Integer, String>> queued = shed == second ? third : second;
+            Assert.assertTrue(shed.isDone());
+            Assert.assertEquals(503, (int) shed.get().getLeft());
+            Assert.assertFalse(busy.isDone());
+            release.countDown();
+            Assert.assertEquals(200, (int) busy.get(10, TimeUnit.SECONDS).getLeft());
+            Assert.assertEquals(200, (int) queued.get(10, TimeUnit.SECONDS).getLeft());
+        } finally {
+            release.countDown();
+            clients.shutdownNow();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void httpLargeResponseTest() throws Exception {
+        MyLibrary my = MyLibrary.createLibrary(library, 500, 0, 0);
+        Book odd = new Book("Odd", "Quote \" back\\slash \u00e9\u4e2d", "Press", 2000, "Author", 1.5, 1);
+        Assert.assertTrue(library.storeBook(odd).ok);
+        HttpApiServer server = new HttpApiServer(library, 0, 2, 16);
+        server.start();
+        try {
+            /* far more than one buffer, sent in chunks */
+            Pair<Integer, String> reply = http(server.getPort(), "GET", "/book", null);
+            Assert.assertEquals(200, (int) reply.getLeft());
+            Map<?, ?> json = (Map<?, ?>) Json.parse(reply.getRight());
+            List<?> books = (List<?>) json.get("results");
+            Assert.assertEquals(my.nBooks() + 1, books.size());
+            Map<?, ?> last = (Map<?, ?>) books.get(books.size() - 1);
+            Assert.assertEquals(odd.getTitle(), last.get("title"));
+            Assert.assertEquals(1.5, (Double) last.get("price"), 1e-9);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void httpConditionalGetTest() throws Exception {
+        MyLibrary my = MyLibrary.createLibrary(library, 5, 3, 0);
+        HttpApiServer server = new HttpApiServer(library, 0, 2, 16);
+        server.start();
+        try {
+            int port = server.getPort();
+            String etag = conditionalGet(port, "/card", null).getRight();
+            Assert.assertNotNull(etag);
+            /* nothing has changed */
+            Assert.assertEquals(304, (int) conditionalGet(port, "/card", etag).getLeft());
+            /* other tables do not matter */
+            Assert.assertTrue(library.incBookStock(my.books.get(0).getBookId(), 1).ok);
+            Assert.assertEquals(304, (int) conditionalGet(port, "/card", etag).getLeft());
+            /* a new card does */
+            Card card = new Card(0, "Etag", "Cache", Card.CardType.Teacher);
+            Assert.assertTrue(library.registerCard(card).ok);
+            Pair<Integer, String> reply = conditionalGet(port, "/card", etag);
+            Assert.assertEquals(200, (int) reply.getLeft());
+            Assert.assertNotEquals(etag, reply.getRight());
+            /* a borrow changes the borrow history & the catalog */
+            String bookTag = conditionalGet(port, "/book", null).getRight();
+            String borrowTag = conditionalGet(port, "/borrow?cardID=" + card.getCardId(), null).getRight();
+            Borrow borrow = new Borrow(my.books.get(0).getBookId(), card.getCardId());
+            borrow.resetBorrowTime();
+            Assert.assertTrue(library.borrowBook(borrow).ok);
+            Assert.assertEquals(200, (int) conditionalGet(port, "/book", bookTag).getLeft());
+            Assert.assertEquals(200, (int) conditionalGet(port,
+                    "/borrow?cardID=" + card.getCardId(), borrowTag).getLeft());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void httpEventStreamTest() throws Exception {
+        MyLibrary my = MyLibrary.createLibrary(library, 2, 1, 0);
+        int watched = my.books.get(0).getBookId();
+        int other = my.books.get(1).getBookId();
+        HttpApiServer server = new HttpApiServer(library, 0, 2, 16);
+        server.start();
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + server.getPort()
+                    + "/events?bookID=" + watched).openConnection();
+            conn.setReadTimeout(10000);
+            Assert.assertEquals(200, conn.getResponseCode());
+            Assert.assertTrue(conn.getContentType().startsWith("text/event-stream"));
+            Assert.assertEquals(1, library.getEventBus().getSubscriberCount());
+            /* changes of other books are not sent */
+            Assert.assertTrue(library.incBookStock(other, 1).ok);
+            Assert.assertTrue(library.incBookStock(watched, 2).ok);
+            Borrow borrow = new Borrow(watched, my.cards.get(0).getCardId());
+            borrow.resetBorrowTime();
+            Assert.assertTrue(library.borrowBook(borrow).ok);
+            List<String> events = new ArrayList<>();
+            List<Map<?, ?>> data = new ArrayList<>();
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while (data.size() < 2 && (line = reader.readLine()) != null) {
+                if (line.startsWith("event: ")) {
+                    events.add(line.substring(7));
+                } else if (line.startsWith("data: ")) {
+                    data.add((Map<?, ?>) Json.parse(line.substring(6)));
+                }
+            }
+            Assert.assertEquals(Arrays.asList("stock", "borrow"), events);
+            Assert.assertEquals(watched, ((Double) data.get(0).get("bookID")).intValue());
+            Assert.assertEquals(2, ((Double) data.get(0).get("delta")).intValue());
+            Assert.assertEquals(my.cards.get(0).getCardId(), ((Double) data.get(1).get("cardID")).intValue());
+            Assert.assertEquals(-1, ((Double) data.get(1).get("delta")).intValue());
+            conn.disconnect();
+        } finally {
+            server.stop(0);
+        }
+        Assert.assertEquals(0, library.getEventBus().getSubscriberCount());
+    }
+
+    @Test
+    public void kioskRpcTest() throws Exception {
+        MyLibrary my = MyLibrary.createLibrary(library, 3, 1, 0);
+        int cardId = my.cards.get(0).getCardId();
+        for (Book book : my.books) {
+            Assert.assertTrue(library.incBookStock(book.getBookId(), 1).ok);
+        }
+        KioskRpcServer server = new KioskRpcServer(library, 0, 2, 16, 2);
+        server.start();
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(10000);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            /* pipelined on one connection, more than the calls handled at a time */
+            for (int i = 0; i < my.nBooks(); i++) {
+                rpcCall(out, i, KioskRpcServer.OP_BORROW, my.books.get(i).getBookId(), cardId);
+            }
+            rpcCall(out, 10, KioskRpcServer.OP_BORROW, -1, cardId);
+            rpcCall(out, 11, (byte) 9, 0, 0);
+            rpcCall(out, 12, KioskRpcServer.OP_PING, 0, 0);
+            out.flush();
+            Map<Integer, Byte> statuses = rpcReplies(in, 6);
+            for (int i = 0; i < my.nBooks(); i++) {
+                Assert.assertEquals(KioskRpcServer.STATUS_OK, (byte) statuses.get(i));
+            }
+            Assert.assertEquals(KioskRpcServer.STATUS_REFUSED, (byte) statuses.get(10));
+            Assert.assertEquals(KioskRpcServer.STATUS_BAD_REQUEST, (byte) statuses.get(11));
+            Assert.assertEquals(KioskRpcServer.STATUS_OK, (byte) statuses.get(12));
+            BorrowHistories histories = (BorrowHistories) library.showBorrowHistory(cardId).payload;
+            Assert.assertEquals(my.nBooks(), histories.getCount());
+            /* and back */
+            for (int i = 0; i < my.nBooks(); i++) {
+                rpcCall(out, 20 + i, KioskRpcServer.OP_RETURN, my.books.get(i).getBookId(), cardId);
+            }
+            out.flush();
+            for (byte status : rpcReplies(in, my.nBooks()).values()) {
+                Assert.assertEquals(KioskRpcServer.STATUS_OK, status);
+            }
+            /* calls answered at once count against the limit too, reading goes on as replies are sent */
+            for (int i = 0; i < 200; i++) {
+                out.writeInt(8);
+                out.writeInt(100 + i);
+                out.writeInt(0);
+            }
+            out.flush();
+            Map<Integer, Byte> bad = rpcReplies(in, 200);
+            Assert.assertEquals(200, bad.size());
+            for (byte status : bad.values()) {
+                Assert.assertEquals(KioskRpcServer.STATUS_BAD_REQUEST, status);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void rpcCall(DataOutputStream out, int id, byte op, int bookId, int cardId) throws IOException {
+        out.writeInt(21);
+        out.writeInt(id);
+        out.writeByte(op);
+        out.writeInt(bookId);
+        out.writeInt(cardId);
+        out.writeLong(0);
+    }
+
+    /* status of every reply by call id */
+    private static Map<Integer, Byte> rpcReplies(DataInputStream in, int n) throws IOException {
+        Map<Integer, Byte> statuses = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            int length = in.readInt();
+            int id = in.readInt();
+            byte status = in.readByte();
+            byte[] message = new byte[in.readUnsignedShort()];
+            in.readFully(message);
+            Assert.assertEquals(4 + 1 + 2 + message.length, length);
+            Assert.assertNull(statuses.put(id, status));
+        }
+        return statuses;
+    }
+
+    /* a header of the reply to a GET, null if it is not sent */
+    private static String header(int port, String path, String name) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        conn.getResponseCode();
+        String value = conn.getHeaderField(name);
+        conn.disconnect();
+        return value;
+    }
+
+    /* status & ETag of a GET */
+    private static Pair<Integer, String> conditionalGet(int port, String path, String etag) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        if (etag != null) {
+            conn.setRequestProperty("If-None-Match", etag);
+        }
+        int status = conn.getResponseCode();
+        String tag = conn.getHeaderField("ETag");
+        conn.disconnect();
+        return new ImmutablePair<>(status, tag);
+    }
+
+    private static Pair<Integer, String> http(int port, String method, String path, String body) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        conn.setRequestMethod(method);
+        if (body != null) {
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = conn.getResponseCode();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, n);
+            }
+        }
+        return new ImmutablePair<>(status, new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void batchBorrowAndReturnBookTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 20, 2, 0);
+        Card c0 = my.cards.get(0);
+        Book b0 = my.books.get(0);
+        // let b0.stock = 1, so that the second card cannot borrow it
+        Assert.assertTrue(library.incBookStock(b0.getBookId(), -b0.getStock() + 1).ok);
+        /* scan a stack of books for one card */
+        List<Borrow> stack = new ArrayList<>();
+        for (Book book : my.books) {
+            Borrow borrow = new Borrow(book, c0);
+            borrow.resetBorrowTime();
+            stack.add(borrow);
+        }
+        // the same book twice & a non-exists card in one batch
+        Borrow again = new Borrow(my.books.get(1), c0);
+        again.resetBorrowTime();
+        stack.add(again);
+        Borrow other = new Borrow(b0, my.cards.get(1));
+        other.resetBorrowTime();
+        stack.add(other);
+        Borrow noCard = new Borrow(my.books.get(2).getBookId(), -1);
+        noCard.resetBorrowTime();
+        stack.add(noCard);
+        ApiResult result = library.borrowBooks(stack);
+        Assert.assertTrue(result.ok);
+        BatchResults borrowResults = (BatchResults) result.payload;
+        Assert.assertEquals(stack.size(), borrowResults.getCount());
+        Assert.assertEquals(my.nBooks(), borrowResults.getSuccessCount());
+        for (int i = 0; i < stack.size(); i++) {
+            Assert.assertEquals(i < my.nBooks(), borrowResults.getResults().get(i).ok);
+        }
+        /* every stock has been decreased by one */
+        Map<Integer, Integer> stockMap = my.books.stream().collect(
+                Collectors.toMap(Book::getBookId, b -> b.getBookId() == b0.getBookId() ? 0 : b.getStock() - 1));
+        ApiResult queryResult = library.queryBook(new BookQueryConditions());
+        Assert.assertTrue(queryResult.ok);
+        for (Book book : ((BookQueryResults) queryResult.payload).getResults()) {
+            Assert.assertEquals(stockMap.get(book.getBookId()).intValue(), book.getStock());
+        }
+        /* return them at once, one of them twice */
+        List<Borrow> returns = new ArrayList<>(stack.subList(0, my.nBooks()));
+        for (Borrow borrow : returns) {
+            borrow.resetReturnTime();
+        }
+        returns.add(returns.get(0));
+        result = library.returnBooks(returns);
+        Assert.assertTrue(result.ok);
+        BatchResults returnResults = (BatchResults) result.payload;
+        Assert.assertEquals(returns.size(), returnResults.getCount());
+        Assert.assertEquals(my.nBooks(), returnResults.getSuccessCount());
+        Assert.assertFalse(returnResults.getResults().get(my.nBooks()).ok);
+        /* check borrow histories */
+        ApiResult historyResult = library.showBorrowHistory(c0.getCardId());
+        Assert.assertTrue(historyResult.ok);
+        BorrowHistories histories = (BorrowHistories) historyResult.payload;
+        Assert.assertEquals(my.nBooks(), histories.getCount());
+        for (BorrowHistories.Item item : histories.getItems()) {
+            Assert.assertTrue(item.getReturnTime() > item.getBorrowTime());
+        }
+    }
+
     @Test
     public void parallelBorrowBookTest() {
         int nThreads = BorrowThread.nThreads;
@@ -591,22 +1562,13 @@ public class LibraryTest {
         Book book = my.books.get(0);
         // let book.stock = 1
         Assert.assertTrue(library.incBookStock(book.getBookId(), -book.getStock() + 1).ok);
-        /* all threads connect to database */
-        List<DatabaseConnector> connectors = new ArrayList<>();
-        List<LibraryManagementSystem> libraries = new ArrayList<>();
-        for (int i = 0; i < nThreads; i++) {
-            DatabaseConnector connector = new DatabaseConnector(connectConfig);
-            Assert.assertTrue(connector.connect());
-            connectors.add(connector);
-            libraries.add(new LibraryManagementSystemImpl(connector));
-        }
-        /* start all threads */
+        /* start all threads, they share one library backed by the connection pool */
         List<BorrowThread> borrowThreads = new ArrayList<>();
         BorrowThread.acquireAll();
         for (int i = 0; i < nThreads; i++) {
             Borrow borrow = new Borrow(book, my.cards.get(i));
             borrow.resetBorrowTime();
-            BorrowThread thd = new BorrowThread(i, libraries.get(i), borrow);
+            BorrowThread thd = new BorrowThread(i, library, borrow);
             thd.start();
             borrowThreads.add(thd);
         }
@@ -622,10 +1584,213 @@ public class LibraryTest {
         /* check results */
         // only one thread can successfully borrow the book
         Assert.assertEquals(1, BorrowThread.successOps.get());
-        /* release all connections */
-        for (int i = 0; i < nThreads; i++) {
-            Assert.assertTrue(connectors.get(i).release());
+    }
+
+    @Test
+    public void coalesceBorrowTest() throws Exception {
+        MyLibrary my = MyLibrary.createLibrary(library, 2, 5, 0);
+        Book hot = my.books.get(0);
+        Book other = my.books.get(1);
+        Assert.assertTrue(library.incBookStock(hot.getBookId(), -hot.getStock() + 3).ok);
+        Assert.assertTrue(library.incBookStock(other.getBookId(), -other.getStock() + 1).ok);
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        BorrowCoalescer coalescer = new BorrowCoalescer(recordingBatches(batchSizes, null), 200, 100, 2);
+        /* borrowers of one book within the window share one batch */
+        List<CompletableFuture<ApiResult>> futures = new ArrayList<>();
+        for (Card card : my.cards) {
+            Borrow borrow = new Borrow(hot, card);
+            borrow.resetBorrowTime();
+            futures.add(coalescer.submit(borrow));
+        }
+        Borrow borrow = new Borrow(other, my.cards.get(0));
+        borrow.resetBorrowTime();
+        CompletableFuture<ApiResult> otherFuture = coalescer.submit(borrow);
+        /* every caller gets the outcome of its own item */
+        int ok = 0;
+        for (CompletableFuture<ApiResult> future : futures) {
+            ApiResult result = future.get(10, TimeUnit.SECONDS);
+            if (result.ok) {
+                ok++;
+            } else {
+                Assert.assertNotNull(result.message);
+            }
+        }
+        Assert.assertEquals(3, ok);
+        Assert.assertTrue(otherFuture.get(10, TimeUnit.SECONDS).ok);
+        List<Integer> sizes = new ArrayList<>(batchSizes);
+        Collections.sort(sizes);
+        Assert.assertEquals(Arrays.asList(1, my.nCards()), sizes);
+        /* 3 copies of the hot book & 1 of the other one have been borrowed */
+        int borrowed = 0;
+        for (Card card : my.cards) {
+            borrowed += ((BorrowHistories) library.showBorrowHistory(card.getCardId()).payload).getCount();
+        }
+        Assert.assertEquals(4, borrowed);
+    }
+
+    @Test
+    public void coalesceFlushTest() throws Exception {
+        MyLibrary my = MyLibrary.createLibrary(library, 2, 2, 0);
+        for (Book book : my.books) {
+            Assert.assertTrue(library.incBookStock(book.getBookId(), 2).ok);
+        }
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        /* a full batch does not wait for its window */
+        BorrowCoalescer full = new BorrowCoalescer(recordingBatches(batchSizes, null), 60000, 2, 1);
+        List<CompletableFuture<ApiResult>> futures = new ArrayList<>();
+        for (Card card : my.cards) {
+            Borrow borrow = new Borrow(my.books.get(0), card);
+            borrow.resetBorrowTime();
+            futures.add(full.submit(borrow));
+        }
+        for (CompletableFuture<ApiResult> future : futures) {
+            Assert.assertTrue(future.get(10, TimeUnit.SECONDS).ok);
+        }
+        Assert.assertEquals(Collections.singletonList(2), batchSizes);
+        /* a lone borrower is flushed when the window expires */
+        BorrowCoalescer timed = new BorrowCoalescer(recordingBatches(batchSizes, null), 50, 100, 1);
+        Borrow borrow = new Borrow(my.books.get(1), my.cards.get(0));
+        borrow.resetBorrowTime();
+        Assert.assertTrue(timed.submit(borrow).get(10, TimeUnit.SECONDS).ok);
+        Assert.assertEquals(Arrays.asList(2, 1), batchSizes);
+    }
+
+    @Test
+    public void coalesceCloseTest() throws Exception {
+        MyLibrary my = MyLibrary.createLibrary(library, 2, 1, 0);
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        BorrowCoalescer coalescer = new BorrowCoalescer(recordingBatches(batchSizes, null), 60000, 100, 1);
+        Borrow borrow = new Borrow(my.books.get(0), my.cards.get(0));
+        borrow.resetBorrowTime();
+        CompletableFuture<ApiResult> future = coalescer.submit(borrow);
+        /* closing runs the waiting batch without waiting for its window */
+        coalescer.close();
+        Assert.assertTrue(future.isDone());
+        Assert.assertTrue(future.get().ok);
+        Assert.assertEquals(Collections.singletonList(1), batchSizes);
+        coalescer.close();
+        /* a borrow after closing starts the threads again */
+        borrow = new Borrow(my.books.get(1), my.cards.get(0));
+        borrow.resetBorrowTime();
+        future = coalescer.submit(borrow);
+        coalescer.close();
+        Assert.assertTrue(future.get(10, TimeUnit.SECONDS).ok);
+        Assert.assertEquals(Arrays.asList(1, 1), batchSizes);
+    }
+
+    @Test
+    public void coalesceFailureTest() throws Exception {
+        MyLibrary my = MyLibrary.createLibrary(library, 1, 2, 0);
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        BorrowCoalescer coalescer = new BorrowCoalescer(
+                recordingBatches(batchSizes, "The batch has failed."), 100, 100, 1);
+        List<CompletableFuture<ApiResult>> futures = new ArrayList<>();
+        for (Card card : my.cards) {
+            Borrow borrow = new Borrow(my.books.get(0), card);
+            borrow.resetBorrowTime();
+            futures.add(coalescer.submit(borrow));
+        }
+        /* a failed batch fails every caller */
+        for (CompletableFuture<ApiResult> future : futures) {
+            ApiResult result = future.get(10, TimeUnit.SECONDS);
+            Assert.assertFalse(result.ok);
+            Assert.assertEquals("The batch has failed.", result.message);
+        }
+        Assert.assertEquals(Collections.singletonList(2), batchSizes);
+    }
+
+    /* the library, the sizes of the batches given to borrowBooks are recorded. with a failure, the batches fail */
+    private LibraryManagementSystem recordingBatches(List<Integer> batchSizes, String failure) {
+        return (LibraryManagementSystem) Proxy.newProxyInstance(LibraryManagementSystem.class.getClassLoader(),
+                new Class<?>[]{LibraryManagementSystem.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("borrowBooks")) {
+                        batchSizes.add(((List<?>) args[0]).size());
+                        if (failure != null) {
+                            return new ApiResult(false, failure);
+                        }
+                    }
+                    try {
+                        return method.invoke(library, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    @Test
+    public void stripedLockTest() throws Exception {
+        Assert.assertEquals(128, new StripedLock(100).getStripes());
+        StripedLock locks = new StripedLock(8);
+        /* find two ids on one stripe & two on different stripes */
+        int same = 2;
+        while (locks.get(same) != locks.get(1)) {
+            same++;
+        }
+        int other = 2;
+        while (locks.get(other) == locks.get(1)) {
+            other++;
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            locks.get(1).lock();
+            try {
+                /* distinct ids on one stripe wait for each other, on different stripes they do not */
+                Lock sameLock = locks.get(same);
+                Lock otherLock = locks.get(other);
+                Assert.assertFalse(executor.submit(() -> tryLockAndUnlock(sameLock)).get(10, TimeUnit.SECONDS));
+                Assert.assertTrue(executor.submit(() -> tryLockAndUnlock(otherLock)).get(10, TimeUnit.SECONDS));
+            } finally {
+                locks.get(1).unlock();
+            }
+            /* a stripe is taken once however many of its ids are given */
+            List<Lock> locked = locks.lockAll(Arrays.asList(1, same, other, 1));
+            Assert.assertEquals(2, locked.size());
+            locks.unlockAll(locked);
+            Assert.assertTrue(executor.submit(() -> tryLockAndUnlock(locks.get(1))).get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void stripedLockOrderTest() throws Exception {
+        StripedLock locks = new StripedLock(64);
+        List<Integer> ids = new ArrayList<>();
+        for (int id = 1; id <= 32; id++) {
+            ids.add(id);
+        }
+        /* threads lock the same ids in different orders, which deadlocks unless the stripes are ordered */
+        int nThreads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int t = 0; t < nThreads; t++) {
+                List<Integer> order = new ArrayList<>(ids);
+                Collections.shuffle(order, new Random(t));
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < 2000; i++) {
+                        locks.unlockAll(locks.lockAll(i % 2 == 0 ? order : ids.subList(i % 7, 32 - i % 5)));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static boolean tryLockAndUnlock(Lock lock) {
+        if (!lock.tryLock()) {
+            return false;
         }
+        lock.unlock();
+        return true;
     }
 
     @Test